@@ -1,6 +1,7 @@
 module TextChat {
     requires transitive javafx.controls;
     requires java.sql;
+    requires jdk.jfr;
     exports roomChat.server;
     exports roomChat.user;
 }
\ No newline at end of file
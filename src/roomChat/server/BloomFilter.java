@@ -0,0 +1,87 @@
+/**
+ * BloomFilter.java
+ * @author Daniel Tregea
+ * A thread-safe Bloom filter of strings, used to answer most "does this user exist"
+ * questions without asking the database.
+ * A negative answer is always right, a positive answer is wrong about falsePositiveRate of the time.
+ */
+package roomChat.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long size; // Number of bits
+    private final int hashes; // Bits set for each string
+
+    /**
+     * @param expectedInsertions strings the filter is sized for. More can be added at a higher false positive rate
+     * @param falsePositiveRate wanted rate of wrong positive answers once expectedInsertions strings are added
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        int insertions = Math.max(1, expectedInsertions);
+        long optimalBits = (long) Math.ceil(-insertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (optimalBits + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.size = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) size / insertions * Math.log(2)));
+    }
+
+    /**
+     * Add a string to the filter
+     * @param value the string to add
+     */
+    public void add(String value){
+        long hash = hash(value);
+        long step = step(hash);
+        for(int i = 0; i < hashes; i++){
+            long bit = Math.floorMod(hash + i * step, size);
+            long mask = 1L << bit;
+            bits.getAndAccumulate((int) (bit >>> 6), mask, (word, set) -> word | set);
+        }
+    }
+
+    /**
+     * Check whether a string may have been added
+     * @param value the string to check
+     * @return True - the string may have been added. False - the string was never added
+     */
+    public boolean mightContain(String value){
+        long hash = hash(value);
+        long step = step(hash);
+        for(int i = 0; i < hashes; i++){
+            long bit = Math.floorMod(hash + i * step, size);
+            if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string's characters, mixed so every bit depends on the whole string
+     */
+    private static long hash(String value){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++){
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Second, independent hash used as the distance between bits. Odd so it never repeats a bit early
+     */
+    private static long step(long hash){
+        return mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+    }
+
+    private static long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
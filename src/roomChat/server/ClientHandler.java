@@ -8,44 +8,144 @@ package roomChat.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientHandler extends Thread {
 
+    // Rate limits, configurable with -D system properties
+    private static final int MESSAGES_PER_SECOND = Integer.getInteger("roomChat.messagesPerSecond", 5);
+    private static final int MESSAGE_BURST = Integer.getInteger("roomChat.messageBurst", 10);
+    private static final int CHARACTERS_PER_SECOND = Integer.getInteger("roomChat.charactersPerSecond", 2048);
+    private static final int CHARACTER_BURST = Integer.getInteger("roomChat.characterBurst", 8192);
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger("roomChat.compressionThreshold", 256);
+    private static final int MAX_SUBSCRIPTIONS = Integer.getInteger("roomChat.maxSubscriptions", 20);
+    private static final int MAX_QUEUED_MESSAGES = Integer.getInteger("roomChat.maxQueuedMessages", 1000);
+    static final long FLUSH_TIMEOUT = Integer.getInteger("roomChat.flushTimeoutSeconds", 5) * 1_000_000_000L;
+    private static final int PRIORITY_WEIGHT = 8; // Priority messages sent for each chat message when both lanes are backed up
+    private static final int MAX_RESETS_SKIPPED = 16; // Stream resets looked past when waiting for a message
+    private static final long IDLE_TIMEOUT = Integer.getInteger("roomChat.idleTimeoutSeconds", 30) * 1_000_000_000L;
+    private static final RateLimitAction RATE_LIMIT_ACTION = readRateLimitAction();
+    private static final AtomicInteger nextConnectionId = new AtomicInteger();
+
+    public enum RateLimitAction{
+        DROP, WARN, KICK
+    }
+
+    private final int connectionId = nextConnectionId.incrementAndGet(); // Identifies the connection in traffic captures
     private String userName;
+    private String sessionToken;
     private final Socket socket;
-    private Room room;
+    private Room room; // Room the client chats in
+    private final Set<Room> subscriptions = ConcurrentHashMap.newKeySet(); // Every room the client receives broadcasts from
     private boolean connected = false;
-    private final ObjectInputStream in;
-    private final ObjectOutputStream out;
+    private BufferedInputStream bufferedIn; // Under in, so a message can be waited for without reading it
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean compression = false; // Negotiated with HELLO
+    // Outbound messages wait in one of two lanes until a thread holding writeLock writes them
+    private final ConcurrentLinkedQueue<Message> priorityLane = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Message> chatLane = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger chatQueued = new AtomicInteger();
+    private final ConcurrentHashMap<Message, String[]> unsentDirect = new ConcurrentHashMap<>(); // Sender and text of direct messages not written yet
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final TokenBucket messageLimit = new TokenBucket(MESSAGES_PER_SECOND, MESSAGE_BURST);
+    private final TokenBucket characterLimit = new TokenBucket(CHARACTERS_PER_SECOND, CHARACTER_BURST);
 
-    public ClientHandler(Socket socket, String room) throws IOException {
+    public ClientHandler(Socket socket, String room) {
         this.socket = socket;
         this.room = Server.getRoom(room);
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
+    }
 
+    /**
+     * Read the rate limit action from roomChat.rateLimitAction
+     * @return the configured action, WARN if it is not set or not recognized
+     */
+    private static RateLimitAction readRateLimitAction(){
+        String action = System.getProperty("roomChat.rateLimitAction", "WARN");
+        try {
+            return RateLimitAction.valueOf(action.strip().toUpperCase());
+        } catch(IllegalArgumentException e){
+            System.out.println("Unknown roomChat.rateLimitAction \"" + action + "\", using WARN");
+            return RateLimitAction.WARN;
+        }
+    }
+
+    /**
+     * Get what is done to a client over its rate limit
+     * @return the rate limit action
+     */
+    static RateLimitAction getRateLimitAction(){
+        return RATE_LIMIT_ACTION;
     }
 
     @Override
     public void run() {
         Message message;
+        Server.scheduleTimeout(this::checkIdle, lastActivity + IDLE_TIMEOUT);
+        // Open the streams on this thread so a slow client or TLS handshake does not hold up the server
+        try {
+            openStreams();
+        } catch (IOException e) {
+            System.out.println("ClientHandler could not open streams: " + e.getMessage());
+            disconnect();
+            return;
+        }
         // Log in sequence
         while (!connected){
             try {
                 message = (Message) receive();
-                String[] credentials = message.toString().split(" ");
+                Server.recordTraffic(this, message);
+                if (message.getType() == Message.TYPE.HEARTBEAT){
+                    queue(message);
+                    continue;
+                }
+                if (message.getType() == Message.TYPE.HELLO){
+                    negotiate(message);
+                    continue;
+                }
+                String[] credentials = message.toString() == null ? new String[0] : message.toString().split(" ");
+                Message.TYPE request = message.getType();
 
-                if (message.getType() == Message.TYPE.LOGIN)
+                if (credentials.length < 2)
+                    message = new Message("Please log in", Message.TYPE.LOGIN_DENIED);
+                 else if (message.getType() == Message.TYPE.LOGIN)
                     message = Server.logInUser(this, credentials[0], credentials[1]);
                  else if(message.getType() == Message.TYPE.REGISTER)
                     message = Server.registerUser(this, credentials[0], credentials[1]);
+                 else if(message.getType() == Message.TYPE.RESUME)
+                    message = Server.resumeSession(this, credentials);
+                 else
+                    message = new Message("Please log in", Message.TYPE.LOGIN_DENIED);
 
+                if (message.getType() == Message.TYPE.LOGIN_SUCCESS && request == Message.TYPE.RESUME){
+                    // Rejoin the rooms the client was in and send what they missed
+                    send(message);
+                    for(int i = 1; i + 2 < credentials.length && i / 3 < MAX_SUBSCRIPTIONS; i += 3)
+                        Server.joinRoom(credentials[i], this).resumeClient(this, Long.parseLong(credentials[i + 1]), Long.parseLong(credentials[i + 2]), i == 1);
+                    Server.deliverMailbox(this);
+                    continue;
+                }
                 if (message.getType() == Message.TYPE.LOGIN_SUCCESS)
                     room.addClient(this);
 
                 send(message);
+                if (message.getType() == Message.TYPE.LOGIN_SUCCESS)
+                    Server.deliverMailbox(this);
             } catch (IOException | ClassNotFoundException e) {
                 System.out.println("ClientHandler disconnect during log in");
+                Server.recordDisconnect(this);
+                disconnect();
                 break;
             }
         }
@@ -53,30 +153,177 @@ public class ClientHandler extends Thread {
         while(connected){
             try{
                 message = (Message) receive(); // receive from UI
-                //TODO message filtering, ban inappropriate language
+                Server.recordTraffic(this, message);
+                if (message.getType() == Message.TYPE.HEARTBEAT){
+                    queue(message); // answer so the client knows the server is alive
+                    continue;
+                }
+                if(Server.isShuttingDown())
+                    continue; // Nothing is handled while /END saves the snapshot and closes the database
+                if(!withinRateLimit(message))
+                    continue;
+                TraceEvents.Dispatch dispatch = new TraceEvents.Dispatch();
+                dispatch.begin();
+                Room dispatchedIn = room;
                 System.out.println("RECEIVED MESSAGE IN ROOM " + room.getRoomName() + ": " + message.toString() + " - TYPE: "+ message.getType());
                 if (message.getType() == Message.TYPE.MESSAGE){
+                    message.setMessage(Server.filterMessage(message.getMessage()));
                     room.broadcast(this, message); // broadcast to rest in room
+                    Server.recordMessage(room.getRoomName(), userName, message.getMessage());
                 } else if (message.getType() == Message.TYPE.CHANGE_ROOM){
-                    Room newRoom = Server.getRoom(message.toString());
-                    if(newRoom.equals(room)){
+                    String roomName = message.toString() == null ? null : message.toString().strip();
+                    if(!Room.isValidName(roomName)){
+                        send(new Message("Room names must be 1 to 100 characters without spaces"));
+                    } else if(roomName.equalsIgnoreCase(room.getRoomName())){
                         send(new Message("You are already in " + room.getRoomName()));
                     } else{
-                        send(new Message("Going to room: " + newRoom.getRoomName()));
+                        // Leave first so no broadcast from the old room arrives after the client has moved
                         room.removeClient(this, message);
+                        Room newRoom = Server.joinRoom(roomName, this);
+                        sendRoomUpdate("Going to room: " + newRoom.getRoomName(), Message.TYPE.CHANGE_ROOM, newRoom);
                         newRoom.addClient(this);
                     }
+                }else if (message.getType() == Message.TYPE.DIRECT){
+                    Server.sendDirectMessage(this, message.getMessage());
+                }else if (message.getType() == Message.TYPE.SUBSCRIBE){
+                    subscribe(message.getMessage());
+                }else if (message.getType() == Message.TYPE.UNSUBSCRIBE){
+                    unsubscribe(message.getMessage());
                 }else if (message.getType() == Message.TYPE.ROOM_STATUS){
-                    send(new Message(Server.getRoomOccupancy()));
+                    sendPriority(new Message(Server.getRoomOccupancy()));
+                }else if (message.getType() == Message.TYPE.SEARCH){
+                    send(new Message(Server.searchHistory(message.getMessage())));
+                }
+                if(dispatch.shouldCommit()){
+                    dispatch.type = message.getType().name();
+                    dispatch.room = dispatchedIn.getRoomName();
+                    dispatch.size = TraceEvents.size(message);
+                    dispatch.commit();
                 }
             } catch(IOException | ClassNotFoundException e){
-                room.removeClient(this, new Message("has disconnected"));
+                for(Room subscribed : subscriptions)
+                    subscribed.removeClient(this, new Message("has disconnected"));
                 Server.setClientOffline(this); // set offline
+                Server.returnUnsentDirect(this);
+                Server.recordDisconnect(this);
                 connected = false;
             }
         }
     }
 
+    /**
+     * Agree on compression with the client
+     * The client lists the codecs it supports, the server answers with the one it will use
+     * @param hello the client's HELLO message
+     * @throws IOException indicates connection error to clients socket
+     */
+    private void negotiate(Message hello) throws IOException {
+        compression = hello.getMessage() != null && Arrays.asList(hello.getMessage().split(",")).contains(Compression.CODEC);
+        queue(new Message(compression ? Compression.CODEC : "none", Message.TYPE.HELLO));
+    }
+
+    /**
+     * Start receiving broadcasts from another room
+     * @param roomName name of the room to subscribe to
+     * @throws IOException indicates connection error to clients socket
+     */
+    private void subscribe(String roomName) throws IOException {
+        if(roomName == null || roomName.isBlank()){
+            send(new Message("Usage: /subscribe room"));
+            return;
+        }
+        if(!Room.isValidName(roomName.strip())){
+            send(new Message("Room names must be 1 to 100 characters without spaces"));
+            return;
+        }
+        for(Room each : subscriptions){
+            if(each.getRoomName().equalsIgnoreCase(roomName.strip())){
+                send(new Message("You are already subscribed to " + each.getRoomName()));
+                return;
+            }
+        }
+        if(subscriptions.size() >= MAX_SUBSCRIPTIONS){
+            send(new Message("You can not subscribe to more than " + MAX_SUBSCRIPTIONS + " rooms"));
+        } else {
+            Room subscribed = Server.joinRoom(roomName.strip(), this);
+            sendRoomUpdate("Subscribed to " + subscribed.getRoomName(), Message.TYPE.SUBSCRIBE, subscribed);
+            subscribed.subscribe(this);
+        }
+    }
+
+    /**
+     * Stop receiving broadcasts from a room the client does not chat in
+     * @param roomName name of the room to unsubscribe from
+     * @throws IOException indicates connection error to clients socket
+     */
+    private void unsubscribe(String roomName) throws IOException {
+        Room subscribed = null;
+        for(Room each : subscriptions){
+            if(roomName != null && each.getRoomName().equalsIgnoreCase(roomName.strip()))
+                subscribed = each;
+        }
+        if(subscribed == null){
+            send(new Message("You are not subscribed to " + roomName));
+        } else if(subscribed == room){
+            send(new Message("You can not unsubscribe from the room you are in"));
+        } else {
+            subscribed.removeClient(this, new Message("has unsubscribed"));
+            sendRoomUpdate("Unsubscribed from " + subscribed.getRoomName(), Message.TYPE.UNSUBSCRIBE, subscribed);
+        }
+    }
+
+    /**
+     * Tell the client about a change to the rooms they receive broadcasts from
+     * The reply carries the room and its current sequence number so the client can resume it later
+     * @param text text to show the client
+     * @param type CHANGE_ROOM, SUBSCRIBE or UNSUBSCRIBE
+     * @param updated the room that changed
+     * @throws IOException indicates connection error to clients socket
+     */
+    private void sendRoomUpdate(String text, Message.TYPE type, Room updated) throws IOException {
+        Message update = new Message(text + "\n", type);
+        update.setSequence(updated.getRoomName(), updated.getEpoch(), updated.getSequence());
+        queue(update);
+    }
+
+    /**
+     * Check a message against the client's and room's rate limits
+     * A message that is rejected takes nothing from any limit
+     * Punishes the client according to RATE_LIMIT_ACTION when a limit is exceeded
+     * @param message message received from the client
+     * @return True - message may be handled. False - message should be dropped
+     * @throws IOException indicates connection error to clients socket
+     */
+    private boolean withinRateLimit(Message message) throws IOException {
+        int size = message.getMessage() == null ? 0 : message.getMessage().length();
+        boolean allowed = false;
+        if(messageLimit.tryConsume(1)){
+            if(characterLimit.tryConsume(size)){
+                allowed = message.getType() != Message.TYPE.MESSAGE || room.allowMessage(size);
+                if(!allowed)
+                    characterLimit.refund(size);
+            }
+            if(!allowed)
+                messageLimit.refund(1);
+        }
+        if(allowed)
+            return true;
+
+        if(RATE_LIMIT_ACTION == RateLimitAction.WARN)
+            send(new Message("You are sending messages too quickly, your message was not sent"));
+        else if(RATE_LIMIT_ACTION == RateLimitAction.KICK)
+            kick("You have been kicked for sending messages too quickly");
+        return false;
+    }
+
+    /**
+     * Get the id of the client's connection, unique for as long as the server runs
+     * @return connection id
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
     /**
      * Get a clients username
      * This will be the same as the clients username in RoomChatDatabase
@@ -86,6 +333,22 @@ public class ClientHandler extends Thread {
         return userName;
     }
 
+    /**
+     * Get the token the client can use to resume their session after a dropped connection
+     * @return session token, null if the client has not logged in
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Set the token the client can use to resume their session
+     * @param sessionToken the session token
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
     /**
      * set a clients username
      * @param userName the name to be set to
@@ -96,11 +359,223 @@ public class ClientHandler extends Thread {
 
     /**
      * Send a message to the client
+     * Log in replies, heartbeats and server announcements go ahead of chat messages
      * @param message message object to be sent
      * @throws IOException indicates connection error to clients socket
      */
     public void send(Message message) throws IOException {
-        out.writeObject(new Message(message + "\n", message.getType()));
+        queue(new Message(message + "\n", message.getType()));
+    }
+
+    /**
+     * Send a message to the client ahead of any chat messages waiting to be sent
+     * @param message message object to be sent
+     * @throws IOException indicates connection error to clients socket
+     */
+    public void sendPriority(Message message) throws IOException {
+        priorityLane.add(new Message(message + "\n", message.getType()));
+        drain();
+    }
+
+    /**
+     * Queue an already formatted message to the client
+     * Broadcasts format a message once and queue the same instance for every recipient
+     * @param message message object to be sent as is
+     * @throws IOException indicates connection error to clients socket
+     */
+    void queue(Message message) throws IOException {
+        if(enqueue(message))
+            drain();
+    }
+
+    /**
+     * Add an already formatted message to one of the lanes without writing it
+     * Rooms enqueue while holding their lock and drain() once it is released,
+     * so a client that stops reading never holds up the rest of the room
+     * @param message message object to be sent as is
+     * @return True - the message is waiting to be written. False - the client is too far behind and was disconnected
+     */
+    boolean enqueue(Message message){
+        Message.TYPE type = message.getType();
+        // Room updates share the chat lane so they stay in order with the room's broadcasts
+        if(type == Message.TYPE.MESSAGE || type == Message.TYPE.CHANGE_ROOM || type == Message.TYPE.SEARCH
+                || type == Message.TYPE.SUBSCRIBE || type == Message.TYPE.UNSUBSCRIBE || type == Message.TYPE.DIRECT){
+            if(chatQueued.incrementAndGet() > MAX_QUEUED_MESSAGES){
+                chatQueued.decrementAndGet();
+                if(!socket.isClosed()){
+                    System.out.println((userName == null ? "client" : userName) + " is not keeping up, disconnecting");
+                    disconnect();
+                }
+                return false;
+            }
+            chatLane.add(message);
+        } else {
+            priorityLane.add(message);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a direct message and write it if no other thread is already writing to this client
+     * A direct message the connection closes before writing is handed back by takeUnsentDirect(),
+     * whichever thread was writing at the time
+     * @param sender username of the sender
+     * @param text contents of the message
+     * @return True - the message was written or is still waiting on an open connection.
+     * False - the connection is closed or too far behind and the message was never queued or was taken back
+     */
+    boolean sendDirect(String sender, String text){
+        Message direct = new Message("[Direct] " + sender + ": " + text + "\n", Message.TYPE.DIRECT);
+        unsentDirect.put(direct, new String[]{sender, text});
+        if(socket.isClosed() || !enqueue(direct)){
+            unsentDirect.remove(direct);
+            return false;
+        }
+        try {
+            drain();
+        } catch(IOException e){
+            System.out.println("Error in sending direct message");
+        }
+        // Still unwritten on a closed connection, take it back unless the disconnect clean up already has
+        if(socket.isClosed() && unsentDirect.remove(direct) != null){
+            if(chatLane.remove(direct))
+                chatQueued.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take back the direct messages that were never written to the client
+     * Called once the connection has closed, so nothing else will write them
+     * @return sender and text of each message
+     */
+    List<String[]> takeUnsentDirect(){
+        List<String[]> unsent = new ArrayList<>();
+        for(Message direct : unsentDirect.keySet()){
+            String[] parts = unsentDirect.remove(direct);
+            if(parts != null)
+                unsent.add(parts);
+        }
+        return unsent;
+    }
+
+    /**
+     * Write queued messages if no other thread is already writing to this client
+     * Priority messages are written first, but a chat message is written after every
+     * PRIORITY_WEIGHT priority messages so chat is never starved
+     * @throws IOException indicates connection error to clients socket
+     */
+    void drain() throws IOException {
+        // Re-check after unlocking, a message may have been queued while the lock was held
+        while(!priorityLane.isEmpty() || !chatLane.isEmpty()){
+            if(!writeLock.tryLock())
+                return; // The thread holding the lock will write it
+            try {
+                writeQueued();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the amount of chat messages waiting to be written to the client
+     * @return messages in the chat lane
+     */
+    public int getQueuedMessages() {
+        return chatQueued.get();
+    }
+
+    /**
+     * Wait for every queued message to be written
+     * Used before closing a connection so the last messages are not lost.
+     * A client that has not taken them within FLUSH_TIMEOUT is disconnected, so a client
+     * that stopped reading can not hold up the server console
+     * @throws IOException indicates connection error to clients socket or the timeout passing
+     */
+    public void flush() throws IOException {
+        flush(System.nanoTime() + FLUSH_TIMEOUT);
+    }
+
+    /**
+     * Wait for every queued message to be written, disconnecting the client if that is not done by a deadline
+     * The watchdog is scheduled before anything is written, so the calling thread never blocks past the deadline.
+     * The server console flushes every client against one deadline, so it waits FLUSH_TIMEOUT once, not per client
+     * @param deadline System.nanoTime() to give up at
+     * @throws IOException indicates connection error to clients socket or the deadline passing
+     */
+    void flush(long deadline) throws IOException {
+        AtomicBoolean flushed = new AtomicBoolean(false);
+        // A write blocked on a full socket only returns once the socket is closed
+        Server.scheduleTimeout(now -> {
+            if(!flushed.get()){
+                System.out.println((userName == null ? "client" : userName) + " did not take its messages in time, disconnecting");
+                disconnect();
+            }
+            return TimingWheel.CANCEL;
+        }, deadline);
+        try {
+            if(!writeLock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)){
+                disconnect(); // Makes the write holding the lock fail
+                throw new IOException("Timed out waiting to write to " + userName);
+            }
+            try {
+                writeQueued();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing");
+        } finally {
+            flushed.set(true);
+        }
+    }
+
+    /**
+     * Write messages from both lanes until they are empty. Caller must hold writeLock
+     * @throws IOException indicates connection error to clients socket
+     */
+    private void writeQueued() throws IOException {
+        int prioritySent = 0;
+        while(true){
+            Message next = null;
+            if(prioritySent < PRIORITY_WEIGHT || chatLane.isEmpty())
+                next = priorityLane.poll();
+            if(next != null){
+                prioritySent++;
+            } else {
+                next = chatLane.poll();
+                if(next == null)
+                    return;
+                chatQueued.decrementAndGet();
+                prioritySent = 0;
+            }
+            TraceEvents.Send event = new TraceEvents.Send();
+            event.begin();
+            write(next);
+            if(next.getType() == Message.TYPE.DIRECT)
+                unsentDirect.remove(next);
+            if(event.shouldCommit()){
+                event.recipient = userName;
+                event.type = next.getType().name();
+                event.room = next.getRoom();
+                event.size = TraceEvents.size(next);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Write a message to the client's stream
+     * The stream is reset after every write so it does not hold on to every message ever sent
+     * @param message message object to be written as is
+     * @throws IOException indicates connection error to clients socket
+     */
+    synchronized void write(Message message) throws IOException {
+        out.writeObject(compression ? message.getCompressedVersion(COMPRESSION_THRESHOLD) : message);
+        out.reset();
         out.flush();
     }
 
@@ -110,9 +585,144 @@ public class ClientHandler extends Thread {
      * @throws IOException indicates connection error to clients socket
      */
     public Object receive() throws IOException, ClassNotFoundException {
+        TraceEvents.Decode event = new TraceEvents.Decode();
+        if(event.isEnabled())
+            awaitMessage(); // Time the decoding, not the wait for the client to send
+        event.begin();
+        Object received = read();
+        lastActivity = System.nanoTime();
+        if(event.shouldCommit() && received instanceof Message){
+            event.type = ((Message) received).getType().name();
+            event.size = TraceEvents.size((Message) received);
+            event.commit();
+        }
+        return received;
+    }
+
+    /**
+     * Open the streams used to talk to the client
+     * @throws IOException indicates connection error to clients socket
+     */
+    void openStreams() throws IOException {
+        synchronized (this){
+            out = new ObjectOutputStream(socket.getOutputStream());
+        }
+        bufferedIn = new BufferedInputStream(socket.getInputStream());
+        in = new ObjectInputStream(bufferedIn);
+    }
+
+    /**
+     * Wait until the first byte of the next message has arrived, without reading it
+     * Clients reset their stream after every message, so a TC_RESET arrives together with the message
+     * before it. Those are looked past, otherwise the wait for the client would be timed as decoding
+     * @throws IOException indicates connection error to clients socket
+     */
+    void awaitMessage() throws IOException {
+        bufferedIn.mark(MAX_RESETS_SKIPPED + 1);
+        try {
+            for(int skipped = 0; skipped <= MAX_RESETS_SKIPPED; skipped++){
+                int next = bufferedIn.read();
+                if(next < 0)
+                    throw new EOFException("Connection closed");
+                if(next != ObjectStreamConstants.TC_RESET)
+                    return;
+            }
+        } finally {
+            bufferedIn.reset(); // Leave every byte for the ObjectInputStream, resets included
+        }
+    }
+
+    /**
+     * Wait until a byte can be read from a stream, leaving it to be read
+     * @param stream a stream that supports mark and reset
+     * @throws IOException indicates a connection error or the end of the stream
+     */
+    static void awaitByte(InputStream stream) throws IOException {
+        stream.mark(1);
+        if(stream.read() < 0)
+            throw new EOFException("Connection closed");
+        stream.reset();
+    }
+
+    /**
+     * Read the next Message object from the client's stream
+     * @return The object read
+     * @throws IOException indicates connection error to clients socket
+     */
+    Object read() throws IOException, ClassNotFoundException {
         return in.readObject();
     }
 
+    /**
+     * Get the client's socket
+     * @return the socket connected to the client
+     */
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Close the connection if nothing has been received for IDLE_TIMEOUT
+     * Closing the socket makes receive() throw, which runs the usual disconnect clean up
+     * @param now the current System.nanoTime()
+     * @return the next time to check, or TimingWheel.CANCEL once the connection is closed
+     */
+    private long checkIdle(long now){
+        if(socket.isClosed())
+            return TimingWheel.CANCEL;
+        long deadline = lastActivity + IDLE_TIMEOUT;
+        if(deadline - now > 0)
+            return deadline;
+        System.out.println((userName == null ? "client" : userName) + " timed out");
+        disconnect();
+        return TimingWheel.CANCEL;
+    }
+
+    /**
+     * Close the connection without a message
+     * The client's thread runs the usual disconnect clean up once receive() throws
+     */
+    public void disconnect(){
+        try {
+            socket.close();
+        } catch(IOException e){
+            System.out.println("Error in closing connection");
+        }
+    }
+
+    /**
+     * Get the room the client chats in
+     * @return the client's current room
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    /**
+     * Add a room to the rooms the client receives broadcasts from
+     * @param subscribed the room
+     * @return True - the room was added. False - the client already receives its broadcasts
+     */
+    boolean addSubscription(Room subscribed) {
+        return subscriptions.add(subscribed);
+    }
+
+    /**
+     * Remove a room from the rooms the client receives broadcasts from
+     * @param subscribed the room
+     */
+    void removeSubscription(Room subscribed) {
+        subscriptions.remove(subscribed);
+    }
+
+    /**
+     * Get every room the client receives broadcasts from, including the room they chat in
+     * @return the client's rooms
+     */
+    public Set<Room> getSubscriptions() {
+        return Collections.unmodifiableSet(subscriptions);
+    }
+
     /**
      * Set a clients room
      * @param room the room to set the client to
@@ -135,8 +745,11 @@ public class ClientHandler extends Thread {
      * @param reason Reason why the client was kicked
      */
     public void kick(String reason){
+        Server.endSession(this);
         try {
-            send(new Message(reason));
+            // Only queued here, flush() writes it with its watchdog running so a full socket can not hold up the console
+            priorityLane.add(new Message(reason + "\n"));
+            flush();
             socket.close();
         } catch(IOException e){
             System.out.println("Error in kicking");
@@ -0,0 +1,98 @@
+/**
+ * Compression.java
+ * @author Daniel Tregea
+ * Deflate compression for message contents, used by connections that negotiated it with HELLO.
+ * Keeps running totals so the CPU spent can be weighed against the bytes saved.
+ */
+package roomChat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression {
+    public static final String CODEC = "deflate";
+
+    private static final AtomicLong messagesCompressed = new AtomicLong();
+    private static final AtomicLong bytesBefore = new AtomicLong();
+    private static final AtomicLong bytesAfter = new AtomicLong();
+    private static final AtomicLong nanosSpent = new AtomicLong();
+
+    // Deflaters hold native memory and are slow to create, so each thread keeps one and resets it between messages
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    /**
+     * Compress text
+     * @param text the text to compress
+     * @return the compressed UTF-8 bytes
+     */
+    public static byte[] deflate(String text){
+        return deflate(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compress UTF-8 text
+     * @param input the UTF-8 bytes to compress
+     * @return the compressed bytes
+     */
+    static byte[] deflate(byte[] input){
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+        byte[] buffer = new byte[1024];
+        while(!deflater.finished())
+            output.write(buffer, 0, deflater.deflate(buffer));
+        deflater.reset();
+        byte[] compressed = output.toByteArray();
+
+        messagesCompressed.incrementAndGet();
+        bytesBefore.addAndGet(input.length);
+        bytesAfter.addAndGet(compressed.length);
+        nanosSpent.addAndGet(System.nanoTime() - start);
+        return compressed;
+    }
+
+    /**
+     * Decompress text compressed with deflate()
+     * @param compressed the compressed bytes
+     * @return the original text
+     * @throws IllegalArgumentException indicates the bytes are not valid deflate data
+     */
+    public static String inflate(byte[] compressed){
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length * 3);
+        byte[] buffer = new byte[1024];
+        try {
+            while(!inflater.finished()){
+                int inflated = inflater.inflate(buffer);
+                if(inflated == 0 && inflater.needsInput())
+                    throw new IllegalArgumentException("Truncated compressed message");
+                output.write(buffer, 0, inflated);
+            }
+        } catch(DataFormatException e){
+            throw new IllegalArgumentException("Malformed compressed message", e);
+        } finally {
+            inflater.end();
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a report on compression so far
+     * @return messages compressed, bytes before and after, and CPU time spent
+     */
+    public static String getStats(){
+        long before = bytesBefore.get();
+        long after = bytesAfter.get();
+        return "Messages compressed: " + messagesCompressed.get() + "\n" +
+                "Compressed bytes: " + before + " -> " + after +
+                (before > 0 ? " (" + (100 - after * 100 / before) + "% saved)" : "") + "\n" +
+                "Compression CPU time: " + nanosSpent.get() / 1_000_000 + " ms\n";
+    }
+}
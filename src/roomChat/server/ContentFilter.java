@@ -0,0 +1,182 @@
+/**
+ * ContentFilter.java
+ * @author Daniel Tregea
+ * Masks inappropriate words in chat messages before they are broadcast.
+ * Words are matched case-insensitively with an Aho-Corasick automaton, so a message is
+ * scanned once no matter how many words are filtered. The word list can be reloaded while
+ * the server is running.
+ */
+package roomChat.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+public class ContentFilter {
+    private final Path wordList;
+    private volatile Automaton automaton = new Automaton(new ArrayList<>());
+
+    public ContentFilter(Path wordList) {
+        this.wordList = wordList;
+    }
+
+    /**
+     * Read the word list and replace the words being filtered
+     * One word or phrase per line, lines starting with # are ignored
+     * @return the amount of words being filtered
+     */
+    public int reload(){
+        List<String> words = new ArrayList<>();
+        try {
+            for(String line : Files.readAllLines(wordList)){
+                line = line.strip();
+                if(!line.isEmpty() && !line.startsWith("#"))
+                    words.add(line);
+            }
+        } catch(NoSuchFileException e){
+            System.out.println(wordList + " not found, no words will be filtered");
+        } catch(IOException e){
+            System.out.println("Error in reading " + wordList + ", keeping current filter");
+            return automaton.wordCount;
+        }
+        automaton = new Automaton(words);
+        return automaton.wordCount;
+    }
+
+    /**
+     * Mask every filtered word in a message with '*'
+     * Only whole words are masked. A clean message is returned as is without copying
+     * @param text the message contents
+     * @return the masked message, or the same String if nothing was filtered
+     */
+    public String mask(String text){
+        Automaton current = automaton;
+        if(text == null || current.wordCount == 0)
+            return text;
+        char[] masked = null;
+        int state = 0;
+        for(int i = 0; i < text.length(); i++){
+            state = current.next(state, Character.toLowerCase(text.charAt(i)));
+            int match = current.wordLength[state] > 0 ? state : current.outputLink[state];
+            while(match != 0){
+                int start = i - current.wordLength[match] + 1;
+                if(isBoundary(text, start - 1) && isBoundary(text, i + 1)){
+                    if(masked == null)
+                        masked = text.toCharArray();
+                    Arrays.fill(masked, start, i + 1, '*');
+                }
+                match = current.outputLink[match];
+            }
+        }
+        return masked == null ? text : new String(masked);
+    }
+
+    /**
+     * Determine whether a position in the text is outside of a word
+     * @param text the message contents
+     * @param index the position to check
+     * @return True - the position is not a letter or digit. False - it is part of a word
+     */
+    private static boolean isBoundary(String text, int index){
+        return index < 0 || index >= text.length() || !Character.isLetterOrDigit(text.charAt(index));
+    }
+
+    /**
+     * An immutable Aho-Corasick automaton.
+     * Transitions are stored in flat arrays: the children of node n are labels/targets
+     * from childStart[n] to childStart[n + 1], sorted by label
+     */
+    private static final class Automaton {
+        private final int wordCount;
+        private final int[] childStart;
+        private final char[] labels;
+        private final int[] targets;
+        private final int[] failure;
+        private final int[] wordLength; // Length of the word ending at a node, 0 if none
+        private final int[] outputLink; // Closest node on the failure chain that ends a word, 0 if none
+
+        private Automaton(List<String> words) {
+            // Build the trie
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            lengths.add(0);
+            int count = 0;
+            for(String word : words){
+                int node = 0;
+                for(int i = 0; i < word.length(); i++){
+                    char c = Character.toLowerCase(word.charAt(i));
+                    Integer child = trie.get(node).get(c);
+                    if(child == null){
+                        child = trie.size();
+                        trie.get(node).put(c, child);
+                        trie.add(new TreeMap<>());
+                        lengths.add(0);
+                    }
+                    node = child;
+                }
+                if(lengths.get(node) == 0)
+                    count++;
+                lengths.set(node, word.length());
+            }
+            wordCount = count;
+
+            // Flatten the transitions
+            int nodes = trie.size();
+            childStart = new int[nodes + 1];
+            for(int n = 0; n < nodes; n++)
+                childStart[n + 1] = childStart[n] + trie.get(n).size();
+            labels = new char[childStart[nodes]];
+            targets = new int[childStart[nodes]];
+            wordLength = new int[nodes];
+            for(int n = 0; n < nodes; n++){
+                int index = childStart[n];
+                for(var entry : trie.get(n).entrySet()){
+                    labels[index] = entry.getKey();
+                    targets[index++] = entry.getValue();
+                }
+                wordLength[n] = lengths.get(n);
+            }
+
+            // Breadth first pass for failure and output links
+            failure = new int[nodes];
+            outputLink = new int[nodes];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for(int i = childStart[0]; i < childStart[1]; i++)
+                queue.add(targets[i]);
+            while(!queue.isEmpty()){
+                int node = queue.poll();
+                for(int i = childStart[node]; i < childStart[node + 1]; i++){
+                    int child = targets[i];
+                    int fail = next(failure[node], labels[i]);
+                    failure[child] = fail;
+                    outputLink[child] = wordLength[fail] > 0 ? fail : outputLink[fail];
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * Follow the automaton from a state on a character
+         * @param state the current state
+         * @param c the lower case character read
+         * @return the next state
+         */
+        private int next(int state, char c){
+            while(true){
+                int index = Arrays.binarySearch(labels, childStart[state], childStart[state + 1], c);
+                if(index >= 0)
+                    return targets[index];
+                if(state == 0)
+                    return 0;
+                state = failure[state];
+            }
+        }
+    }
+}
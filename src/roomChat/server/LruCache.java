@@ -0,0 +1,69 @@
+/**
+ * LruCache.java
+ * @author Daniel Tregea
+ * A bounded, thread-safe cache that forgets the least recently used entry once full.
+ * Used to keep the credentials of recently seen users so log ins do not always ask the database.
+ */
+package roomChat.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity most entries the cache holds
+     */
+    public LruCache(int capacity) {
+        int maxEntries = Math.max(1, capacity);
+        // Access order moves an entry to the end every time it is read
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a cached value
+     * @param key the key
+     * @return the value, null if it is not cached
+     */
+    public synchronized V get(K key){
+        V value = entries.get(key);
+        if(value == null)
+            misses++;
+        else
+            hits++;
+        return value;
+    }
+
+    /**
+     * Cache a value
+     * @param key the key
+     * @param value the value
+     */
+    public synchronized void put(K key, V value){
+        entries.put(key, value);
+    }
+
+    /**
+     * Forget a value, used whenever the original is written
+     * @param key the key
+     */
+    public synchronized void invalidate(K key){
+        entries.remove(key);
+    }
+
+    /**
+     * Get a report on the cache
+     * @return entries, hits and misses
+     */
+    public synchronized String getStats(){
+        return entries.size() + " entries, " + hits + " hits, " + misses + " misses";
+    }
+}
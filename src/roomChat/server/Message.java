@@ -6,10 +6,17 @@
 package roomChat.server;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 public class Message implements Serializable {
     private final TYPE type;
     private String message;
+    private String room; // Room a broadcast or room update is about, null for other messages
+    private long epoch; // Instance of the room the sequence number belongs to, 0 for other messages
+    private long sequence; // Position of a broadcast in its room, 0 for other messages
+    private byte[] compressed; // Contents compressed with Compression.deflate, message is null while set
+    private transient Message compressedVersion; // Compressed once, then shared by every connection using compression
+    private transient byte[] webSocketFrame; // Encoded once, then shared by every browser receiving this message
 
     public Message(String message){
         this.message = message;
@@ -25,7 +32,7 @@ public class Message implements Serializable {
     }
 
     public enum TYPE{
-        MESSAGE, CHANGE_ROOM, ROOM_STATUS, SERVER_BROADCAST, LOGIN_SUCCESS, LOGIN_DENIED, LOGIN, REGISTER
+        MESSAGE, CHANGE_ROOM, ROOM_STATUS, SERVER_BROADCAST, LOGIN_SUCCESS, LOGIN_DENIED, LOGIN, REGISTER, HEARTBEAT, SEARCH, RESUME, SUBSCRIBE, UNSUBSCRIBE, DIRECT, HELLO
     }
 
     /**
@@ -52,6 +59,95 @@ public class Message implements Serializable {
         this.message = message;
     }
 
+    /**
+     * Get the room a broadcast was sent in, or the room a CHANGE_ROOM/SUBSCRIBE/UNSUBSCRIBE reply is about
+     * @return name of the room, null if the message is not about a room
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Get the sequence number of a broadcast within its room
+     * @return sequence number, 0 if the message is not a room broadcast
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the instance of the room a sequence number belongs to
+     * A room that is emptied and created again gets a new epoch and numbers its broadcasts from 1 again
+     * @return the room's epoch, 0 if the message is not about a room
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Stamp a broadcast with the room it was sent in and its position in that room
+     * @param room name of the room
+     * @param epoch the room instance's epoch
+     * @param sequence sequence number within the room
+     */
+    void setSequence(String room, long epoch, long sequence) {
+        this.room = room;
+        this.epoch = epoch;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get a version of this message with its contents compressed
+     * Compressed once and kept, so a broadcast is only compressed once for all of its recipients
+     * @param threshold shortest contents worth compressing, in UTF-8 bytes
+     * @return the compressed message, or this message if it is too short or does not get smaller
+     */
+    synchronized Message getCompressedVersion(int threshold) {
+        if(compressedVersion == null){
+            compressedVersion = this;
+            byte[] utf8 = message == null ? null : message.getBytes(StandardCharsets.UTF_8);
+            if(utf8 != null && utf8.length >= threshold){
+                byte[] bytes = Compression.deflate(utf8);
+                if(bytes.length < utf8.length){
+                    Message version = new Message((String) null, type);
+                    version.room = room;
+                    version.epoch = epoch;
+                    version.sequence = sequence;
+                    version.compressed = bytes;
+                    compressedVersion = version;
+                }
+            }
+        }
+        return compressedVersion;
+    }
+
+    /**
+     * Restore the contents of a message received in compressed form
+     * Does nothing if the message was not compressed
+     */
+    public void decompress() {
+        if(compressed != null){
+            message = Compression.inflate(compressed);
+            compressed = null;
+        }
+    }
+
+    /**
+     * Get this message encoded as a WebSocket frame, if it has been encoded before
+     * @return the encoded frame, or null
+     */
+    byte[] getWebSocketFrame() {
+        return webSocketFrame;
+    }
+
+    /**
+     * Keep this message's encoded WebSocket frame for other recipients
+     * @param webSocketFrame the encoded frame
+     */
+    void setWebSocketFrame(byte[] webSocketFrame) {
+        this.webSocketFrame = webSocketFrame;
+    }
+
     /**
      * Get the contents of the message
      * @return contents of the message
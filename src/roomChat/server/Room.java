@@ -7,15 +7,66 @@
  */
 package roomChat.server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Room implements Comparable<Room>{
+    // Rate limits for the whole room, configurable with -D system properties
+    private static final int MESSAGES_PER_SECOND = Integer.getInteger("roomChat.roomMessagesPerSecond", 50);
+    private static final int MESSAGE_BURST = Integer.getInteger("roomChat.roomMessageBurst", 100);
+    private static final int CHARACTERS_PER_SECOND = Integer.getInteger("roomChat.roomCharactersPerSecond", 20480);
+    private static final int CHARACTER_BURST = Integer.getInteger("roomChat.roomCharacterBurst", 81920);
+    private static final int MAX_NAME_LENGTH = 100; // Size of the room column in room_history
+    private static final int HISTORY_SIZE = Integer.getInteger("roomChat.roomHistorySize", 100);
+    private static final long MAX_EPOCH = 1_000_000_000_000_000_000L; // Epochs fit in 18 digits, like sequence numbers
+
     private final String roomName;
-    private final ArrayList<ClientHandler> clientHandlers = new ArrayList<>(); // List of clients
+    // Random id of this instance of the room, a room that is emptied and created again numbers its broadcasts from 1 again
+    private final long epoch;
+    private final TokenBucket messageLimit = new TokenBucket(MESSAGES_PER_SECOND, MESSAGE_BURST);
+    private final TokenBucket characterLimit = new TokenBucket(CHARACTERS_PER_SECOND, CHARACTER_BURST);
+    private final List<ClientHandler> clientHandlers = new CopyOnWriteArrayList<>(); // List of clients
+    private final Message[] history = new Message[HISTORY_SIZE]; // Most recent broadcasts, by sequence number
+    private long sequence = 0; // Sequence number of the last broadcast
+    private long firstSequence = 1; // Oldest sequence number the history can hold, later for rooms restored from a snapshot
 
     public Room(String roomName) {
         this.roomName = roomName;
+        this.epoch = ThreadLocalRandom.current().nextLong(1, MAX_EPOCH);
+    }
+
+    /**
+     * Restore a room saved in a snapshot
+     * @param roomName name of the room
+     * @param epoch id of the instance that was saved
+     * @param sequence sequence number of the room's last broadcast
+     * @param recent the room's most recent broadcasts, oldest first, the last one numbered sequence
+     */
+    Room(String roomName, long epoch, long sequence, String[] recent) {
+        this.roomName = roomName;
+        this.epoch = epoch;
+        this.sequence = sequence;
+        int kept = Math.min(recent.length, HISTORY_SIZE);
+        this.firstSequence = sequence - kept + 1;
+        for(int i = recent.length - kept; i < recent.length; i++){
+            long restored = sequence - recent.length + 1 + i;
+            Message message = new Message(recent[i]);
+            message.setSequence(roomName, epoch, restored);
+            history[(int) (restored % HISTORY_SIZE)] = message;
+        }
+    }
+
+    /**
+     * Determine whether a name can be used for a room
+     * Names are sent space separated in RESUME requests, so they can not contain whitespace
+     * @param name the name to check
+     * @return True - the name can be used. False - the name is empty, too long or contains whitespace
+     */
+    public static boolean isValidName(String name){
+        return name != null && !name.isEmpty() && name.length() <= MAX_NAME_LENGTH && !name.matches(".*\\s.*");
     }
 
     /**
@@ -27,15 +78,95 @@ public class Room implements Comparable<Room>{
     }
 
     /**
-     * Add a client to the list of clients
+     * Add a client to the list of clients and make this the room they chat in
      * @param clientHandler The client's client handler
      */
     public void addClient(ClientHandler clientHandler){
-        clientHandlers.add(clientHandler);
+        join(clientHandler);
         clientHandler.setRoom(this);
         broadcast(clientHandler, new Message("has joined the chat!"));
     }
 
+    /**
+     * Add a client to the list of clients without changing the room they chat in
+     * @param clientHandler The client's client handler
+     */
+    public void subscribe(ClientHandler clientHandler){
+        join(clientHandler);
+        broadcast(clientHandler, new Message("has subscribed to the chat"));
+    }
+
+    /**
+     * Add a client returning from a dropped connection and send the broadcasts they missed
+     * No other broadcast can happen in between, so the client receives every message exactly once
+     * @param clientHandler The client's client handler
+     * @param lastEpoch epoch of the room instance the client last received a broadcast from, 0 if none
+     * @param lastSequence sequence number of the last broadcast the client received in this room
+     * @param current True - the client chats in this room. False - the client is subscribed to it
+     */
+    public void resumeClient(ClientHandler clientHandler, long lastEpoch, long lastSequence, boolean current){
+        synchronized (this){
+            join(clientHandler);
+            if(current)
+                clientHandler.setRoom(this);
+            long oldest = oldestInHistory();
+            // The room was emptied and created again since the client left, what they received says nothing about this instance
+            boolean recreated = lastEpoch != epoch || lastSequence > sequence;
+            if(recreated)
+                lastSequence = 0;
+            if(lastSequence + 1 < oldest || recreated && lastEpoch != 0)
+                clientHandler.enqueue(new Message("Some messages in " + roomName + " were missed while you were away\n"));
+            for(long missed = Math.max(lastSequence + 1, oldest); missed <= sequence; missed++)
+                clientHandler.enqueue(history[(int) (missed % HISTORY_SIZE)]);
+        }
+        try {
+            clientHandler.drain();
+        } catch(IOException e){
+            System.out.println("exception in resume");
+        }
+    }
+
+    /**
+     * Get the sequence number of the oldest broadcast in the history. Caller must hold the lock
+     * @return the oldest sequence number, sequence + 1 if the history is empty
+     */
+    private long oldestInHistory(){
+        return Math.max(firstSequence, sequence - HISTORY_SIZE + 1);
+    }
+
+    /**
+     * Get the id of this instance of the room
+     * @return the room's epoch
+     */
+    public long getEpoch(){
+        return epoch;
+    }
+
+    /**
+     * Save the room's name, epoch, sequence number and history to a snapshot
+     * @param out the snapshot being written
+     * @throws IOException indicates the snapshot could not be written
+     */
+    synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        long oldest = oldestInHistory();
+        Snapshot.writeString(out, roomName);
+        out.writeLong(epoch);
+        out.writeLong(sequence);
+        out.writeInt((int) (sequence - oldest + 1));
+        for(long saved = oldest; saved <= sequence; saved++)
+            Snapshot.writeString(out, history[(int) (saved % HISTORY_SIZE)].getMessage());
+    }
+
+    /**
+     * Add a client to the list of clients once, and to the client's own list of rooms
+     * Server.joinRoom calls this while it holds the room's entry, so the room can not be removed in between
+     * @param clientHandler The client's client handler
+     */
+    void join(ClientHandler clientHandler){
+        if(clientHandler.addSubscription(this))
+            clientHandlers.add(clientHandler);
+    }
+
     /**
      * Remove a client from the list of clients
      * @param clientHandler The client's clienthandler
@@ -43,14 +174,21 @@ public class Room implements Comparable<Room>{
      */
     public void removeClient(ClientHandler clientHandler, Message message){
         clientHandlers.remove(clientHandler);
-        clientHandler.setRoom(null);
+        clientHandler.removeSubscription(this);
+        if(clientHandler.getRoom() == this)
+            clientHandler.setRoom(null);
         if(getRoomSize() > 0)
             broadcast(clientHandler, message);
-        else
-            if (!roomName.equalsIgnoreCase("Main")){
-                System.out.println(roomName + " has no clients, deleting.");
-                Server.removeRoom(this);
-            }
+        else if(!roomName.equalsIgnoreCase("Main") && Server.removeRoom(this))
+            System.out.println(roomName + " has no clients, deleting.");
+    }
+
+    /**
+     * Get the sequence number of the room's last broadcast
+     * @return the last sequence number, 0 if nothing has been broadcast
+     */
+    public synchronized long getSequence(){
+        return sequence;
     }
 
     /**
@@ -59,25 +197,132 @@ public class Room implements Comparable<Room>{
      * @param message The message to be sent
      */
     public void broadcast(ClientHandler clientHandler, Message message){ // better as clientHandler method?
-        Message messageToSend = new Message("");
+        String text = "";
         // Determine message type
         if(message.getType() == Message.TYPE.MESSAGE){
-            messageToSend.setMessage(roomName + " - "  + clientHandler.getUserName() + ": " + message);
+            text = roomName + " - "  + clientHandler.getUserName() + ": " + message;
         } else if (message.getType() == Message.TYPE.CHANGE_ROOM) {
-            messageToSend.setMessage(roomName + " - " + clientHandler.getUserName() + " moved to room \"" + message.getMessage() + "\"");
+            text = roomName + " - " + clientHandler.getUserName() + " moved to room \"" + message.getMessage() + "\"";
         } else if (message.getType() == Message.TYPE.SERVER_BROADCAST){
-            messageToSend.setMessage("Server announcement: " + message.getMessage());
+            deliver(createAnnouncement(message));
+            return;
         }
-        // Broadcast that message
+        publish(new Message(text + "\n"));
+    }
+
+    /**
+     * Stamp a formatted message with the room's next sequence number, keep it in the
+     * room history and send it to every client in the room
+     * @param messageToSend The formatted message to be sent
+     */
+    private void publish(Message messageToSend){
+        TraceEvents.Broadcast event = new TraceEvents.Broadcast();
+        event.begin();
+        int recipients;
+        // Only queue while holding the lock so every client gets the room's messages in sequence order,
+        // the sockets are written once it is released
+        synchronized (this){
+            // Once /END has started the snapshot may already hold this room, a later broadcast would reuse its number after a restart
+            if(Server.isShuttingDown())
+                return;
+            messageToSend.setSequence(roomName, epoch, ++sequence);
+            history[(int) (sequence % HISTORY_SIZE)] = messageToSend;
+            recipients = enqueue(messageToSend);
+        }
+        drain();
+        commit(event, recipients, messageToSend);
+    }
+
+    /**
+     * Take a message and its characters from the room's rate limits
+     * Nothing is taken unless both limits allow the message
+     * @param characters length of the message
+     * @return True - the room may broadcast another message. False - the room is over a limit
+     */
+    public boolean allowMessage(int characters){
+        if(!messageLimit.tryConsume(1))
+            return false;
+        if(characterLimit.tryConsume(characters))
+            return true;
+        messageLimit.refund(1);
+        return false;
+    }
+
+    /**
+     * Send an already formatted message to every client in the room
+     * The same message instance is shared by all recipients
+     * @param messageToSend The formatted message to be sent
+     */
+    void deliver(Message messageToSend){
+        TraceEvents.Broadcast event = new TraceEvents.Broadcast();
+        event.begin();
+        int recipients = enqueue(messageToSend);
+        drain();
+        commit(event, recipients, messageToSend);
+    }
+
+    /**
+     * Queue an announcement for every client in the room without writing it
+     * The server console then flushes every client against a deadline, so a client that stopped reading can not hold it up
+     * @param announcement The formatted announcement
+     */
+    void announce(Message announcement){
+        TraceEvents.Broadcast event = new TraceEvents.Broadcast();
+        event.begin();
+        commit(event, enqueue(announcement), announcement);
+    }
+
+    /**
+     * Add a message to every client's queue without writing it
+     * @param messageToSend The formatted message to be sent
+     * @return amount of clients the message was queued for
+     */
+    private int enqueue(Message messageToSend){
+        int recipients = 0;
+        for(ClientHandler eachClientHandler : clientHandlers){
+            if(eachClientHandler.enqueue(messageToSend))
+                recipients++;
+        }
+        return recipients;
+    }
+
+    /**
+     * Write queued messages to every client in the room that no other thread is already writing to
+     */
+    private void drain(){
         for(ClientHandler eachClientHandler : clientHandlers){
             try {
-                eachClientHandler.send(messageToSend);
+                eachClientHandler.drain();
             } catch(IOException ignore){
                 System.out.println("exception in broadcast");
             }
         }
     }
 
+    /**
+     * Finish tracing a broadcast
+     * @param event the broadcast's event
+     * @param recipients amount of clients the message was queued for
+     * @param messageToSend the message
+     */
+    private void commit(TraceEvents.Broadcast event, int recipients, Message messageToSend){
+        if(event.shouldCommit()){
+            event.room = roomName;
+            event.recipients = recipients;
+            event.size = TraceEvents.size(messageToSend);
+            event.commit();
+        }
+    }
+
+    /**
+     * Format a server announcement so it can be delivered to any number of rooms
+     * @param message The SERVER_BROADCAST message
+     * @return the formatted message ready to deliver
+     */
+    static Message createAnnouncement(Message message){
+        return new Message("Server announcement: " + message.getMessage() + "\n", Message.TYPE.SERVER_BROADCAST);
+    }
+
     /**
      * Get the amount of clients in a room
      * @return the amount of clients in a room
@@ -86,6 +331,14 @@ public class Room implements Comparable<Room>{
         return clientHandlers.size();
     }
 
+    /**
+     * Determine whether a room has no clients left
+     * @return True - nobody is in the room or subscribed to it
+     */
+    boolean isEmpty(){
+        return clientHandlers.isEmpty();
+    }
+
     /**
      * Determine equality of rooms
      * @param obj the object to be compared to
@@ -0,0 +1,473 @@
+/**
+ * SearchIndex.java
+ * @author Daniel Tregea
+ * Stores chat messages in RoomChatDatabase and keeps an inverted index over them for searching.
+ * Messages are queued by Room.broadcast and stored/indexed on a background thread so
+ * broadcasting never waits on the database or the index.
+ * Each word, and each room, maps to a posting list of message ids, stored as variable length deltas
+ * with a skip entry every SKIP_INTERVAL ids. Searches leapfrog between the lists from the newest id down,
+ * decoding only the blocks they land in, and stop once MAX_CANDIDATES matches are found.
+ * The index lives in memory, about 1-2 bytes per word of history, and is rebuilt from
+ * room_history on a background thread at startup.
+ */
+package roomChat.server;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SearchIndex implements Runnable {
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_MESSAGE_LENGTH = 32000;
+    private static final int MAX_CANDIDATES = 2000; // Most messages read from the database for one search
+    private static final int SKIP_INTERVAL = 128; // Ids between skip entries in a posting list
+    private static final String ROOM_PREFIX = "room:"; // Posting lists of rooms, words never contain ':'
+
+    private final Connection connect;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, PostingList> postings = new HashMap<>();
+    private long nextId = 1;
+    private volatile boolean loaded = false;
+    private volatile boolean closed = false; // Set by close(), nothing more is queued
+    private final CountDownLatch stopped = new CountDownLatch(1); // Counted down once the background thread has stored everything
+
+    private static final Entry STOP = new Entry(null, null, null); // Queued by close() after the last message
+
+    private static final class Entry {
+        private final String room;
+        private final String userName;
+        private final String message;
+
+        private Entry(String room, String userName, String message) {
+            this.room = room;
+            this.userName = userName;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A sorted list of message ids, stored as variable length deltas from the previous id
+     * The ids are split into blocks of SKIP_INTERVAL, each starting with a skip entry holding its first id
+     * and where its second id starts, so a block can be decoded without decoding the ones before it
+     */
+    private static final class PostingList {
+        private byte[] bytes = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private long lastId = 0;
+        private long[] skipIds = new long[1]; // First id of each block
+        private int[] skipPositions = new int[1]; // Position of each block's second id in bytes
+
+        /**
+         * Add a message id, which must be larger than every id already in the list
+         * @param id the message id
+         */
+        private void add(long id){
+            if(id <= lastId)
+                return;
+            long delta = id - lastId;
+            lastId = id;
+            if(length + 10 > bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while(delta >= 0x80){
+                bytes[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            if(count % SKIP_INTERVAL == 0){
+                int block = count / SKIP_INTERVAL;
+                if(block == skipIds.length){
+                    skipIds = Arrays.copyOf(skipIds, block * 2);
+                    skipPositions = Arrays.copyOf(skipPositions, block * 2);
+                }
+                skipIds[block] = id;
+                skipPositions[block] = length;
+            }
+            count++;
+        }
+
+        /**
+         * Get the amount of blocks in the list
+         * @return blocks
+         */
+        private int blocks(){
+            return (count + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+        }
+
+        /**
+         * Find the last block starting at or before an id
+         * @param id the id
+         * @return the block, -1 if every block starts after the id
+         */
+        private int floorBlock(long id){
+            int low = 0, high = blocks() - 1, found = -1;
+            while(low <= high){
+                int middle = (low + high) >>> 1;
+                if(skipIds[middle] <= id){
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Decode one block
+         * @param block the block
+         * @param ids where the ids are written, at least SKIP_INTERVAL long
+         * @return amount of ids in the block
+         */
+        private int decodeBlock(int block, long[] ids){
+            int size = Math.min(SKIP_INTERVAL, count - block * SKIP_INTERVAL);
+            long id = skipIds[block];
+            int position = skipPositions[block];
+            ids[0] = id;
+            for(int i = 1; i < size; i++){
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Reads a posting list from the newest id down, keeping the last decoded block
+     */
+    private static final class Cursor {
+        private final PostingList list;
+        private final long[] block = new long[SKIP_INTERVAL];
+        private int blockIndex = -1;
+        private int blockSize = 0;
+
+        private Cursor(PostingList list) {
+            this.list = list;
+        }
+
+        /**
+         * Find the largest id in the list that is not larger than a target
+         * @param target the target id
+         * @return the id, -1 if every id is larger
+         */
+        private long floor(long target){
+            int found = list.floorBlock(target);
+            if(found < 0)
+                return -1;
+            if(found != blockIndex){
+                blockSize = list.decodeBlock(found, block);
+                blockIndex = found;
+            }
+            int position = Arrays.binarySearch(block, 0, blockSize, target);
+            return position >= 0 ? target : block[-position - 2]; // The block's first id is at most target
+        }
+    }
+
+    public SearchIndex(Connection connect) {
+        this.connect = connect;
+    }
+
+    /**
+     * Index every message already in RoomChatDatabase
+     * Called by run() so the server can accept clients while it loads
+     */
+    private void load(){
+        lock.writeLock().lock();
+        try {
+            Statement statement = connect.createStatement();
+            ResultSet rs = statement.executeQuery("SELECT id, room, message FROM room_history ORDER BY id");
+            int loaded = 0;
+            while(rs.next()){
+                long id = rs.getLong("id");
+                index(id, rs.getString("room"), rs.getString("message"));
+                nextId = id + 1;
+                loaded++;
+            }
+            System.out.println(loaded + " messages loaded into the search index");
+        } catch(SQLException e){
+            System.out.println("Error in loading the search index");
+            System.out.println(e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+            loaded = true; // Search what could be loaded even after an error
+        }
+    }
+
+    /**
+     * Queue a chat message to be stored and indexed
+     * @param room name of the room the message was sent to
+     * @param userName name of the sender
+     * @param message contents of the message
+     */
+    public void add(String room, String userName, String message){
+        if(message != null && !closed)
+            queue.add(new Entry(room, userName, message));
+    }
+
+    /**
+     * Store every message queued so far and stop the background thread
+     * Called before the database is shut down, so history still waiting in the queue is not lost
+     * @param timeoutMillis longest to wait for the queue to be stored
+     * @return True - everything queued was stored. False - the thread did not finish in time
+     * @throws InterruptedException indicates the wait was interrupted
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        queue.add(STOP);
+        return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Store and index queued messages in batches
+     */
+    @Override
+    public void run() {
+        load();
+        List<Entry> batch = new ArrayList<>();
+        while(true){
+            try {
+                batch.add(queue.take());
+            } catch(InterruptedException e){
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            int stop = batch.indexOf(STOP);
+            if(stop >= 0)
+                batch.subList(stop, batch.size()).clear();
+            if(!batch.isEmpty())
+                store(batch);
+            batch.clear();
+            if(stop >= 0){
+                stopped.countDown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Insert a batch of messages into RoomChatDatabase, then add them to the index
+     * @param batch the messages to store
+     */
+    private void store(List<Entry> batch){
+        long firstId = nextId;
+        try {
+            PreparedStatement insert = connect.prepareStatement("INSERT INTO room_history VALUES(?,?,?,?,?)");
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            long id = firstId;
+            for(Entry entry : batch){
+                String message = entry.message.length() > MAX_MESSAGE_LENGTH ? entry.message.substring(0, MAX_MESSAGE_LENGTH) : entry.message;
+                insert.setLong(1, id++);
+                insert.setString(2, entry.room);
+                insert.setString(3, entry.userName);
+                insert.setString(4, message);
+                insert.setTimestamp(5, now);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch(SQLException e){
+            System.out.println("Error in storing room history");
+            System.out.println(e.getMessage());
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for(Entry entry : batch)
+                index(nextId++, entry.room, entry.message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add one message to the index. Caller must hold the write lock
+     * @param id the message id
+     * @param room name of the room the message was sent to
+     * @param message contents of the message
+     */
+    private void index(long id, String room, String message){
+        postings.computeIfAbsent(ROOM_PREFIX + room.toLowerCase(), r -> new PostingList()).add(id);
+        for(String word : tokenize(message))
+            postings.computeIfAbsent(word, w -> new PostingList()).add(id);
+    }
+
+    /**
+     * Search stored messages
+     * Every word must appear in a message. Words in quotes must appear as a phrase.
+     * "room:name" limits the search to one room
+     * @param query the search typed by the user
+     * @param limit most results to return
+     * @return formatted results, newest first
+     */
+    public String search(String query, int limit){
+        String room = null;
+        List<List<String>> phrases = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        String[] quoted = query.split("\"", -1);
+        for(int i = 0; i < quoted.length; i++){
+            if(i % 2 == 1){ // Inside quotes
+                List<String> phrase = tokenize(quoted[i]);
+                words.addAll(phrase);
+                if(phrase.size() > 1)
+                    phrases.add(phrase);
+                continue;
+            }
+            for(String part : quoted[i].strip().split("\\s+")){
+                if(part.toLowerCase().startsWith("room:") && part.length() > 5)
+                    room = part.substring(5);
+                else
+                    words.addAll(tokenize(part));
+            }
+        }
+        if(words.isEmpty())
+            return "Usage: words to search for, \"a phrase\", room:name";
+        if(!loaded)
+            return "Search history is still loading, try again shortly";
+
+        long[] candidates = findCandidates(words, room);
+        StringBuilder stringBuilder = new StringBuilder("SEARCH RESULTS\n--------------\n");
+        int found = 0;
+        int start = 0;
+        // Read candidates newest first, a page at a time, until there are enough results
+        while(start < candidates.length && found < limit){
+            int end = Math.min(candidates.length, start + Math.max(limit, 50));
+            found += appendMatches(stringBuilder, Arrays.copyOfRange(candidates, start, end), phrases, limit - found);
+            start = end;
+        }
+        if(found == 0)
+            stringBuilder.append("No messages found\n");
+        stringBuilder.append("--------------");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Intersect the posting lists of every word, and of the room if there is one
+     * Starting from the newest id, each list is asked for its largest id not above the current target.
+     * When every list agrees the id is a match, otherwise the target drops to the smallest answer
+     * @param words the words that must appear
+     * @param room the room to limit the search to, or null for every room
+     * @return ids of the newest messages containing every word, at most MAX_CANDIDATES, descending
+     */
+    private long[] findCandidates(List<String> words, String room){
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>();
+            List<String> keys = new ArrayList<>(words);
+            if(room != null)
+                keys.add(ROOM_PREFIX + room.toLowerCase());
+            for(String key : keys){
+                PostingList list = postings.get(key);
+                if(list == null)
+                    return new long[0];
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.count)); // The shortest list moves the target furthest
+            List<Cursor> cursors = new ArrayList<>();
+            for(PostingList list : lists)
+                cursors.add(new Cursor(list));
+
+            long[] found = new long[MAX_CANDIDATES];
+            int size = 0;
+            long target = Long.MAX_VALUE;
+            while(size < found.length){
+                boolean agreed = true;
+                for(Cursor cursor : cursors){
+                    long floor = cursor.floor(target);
+                    if(floor < 0)
+                        return Arrays.copyOf(found, size);
+                    if(floor != target){
+                        target = floor;
+                        agreed = false;
+                    }
+                }
+                if(agreed)
+                    found[size++] = target--;
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read candidate messages from RoomChatDatabase and append those containing every phrase
+     * @param stringBuilder where results are appended
+     * @param ids candidate message ids, ascending
+     * @param phrases phrases that must appear in the message
+     * @param limit most results to append
+     * @return amount of results appended
+     */
+    private int appendMatches(StringBuilder stringBuilder, long[] ids, List<List<String>> phrases, int limit){
+        StringBuilder sql = new StringBuilder("SELECT id, room, username, message FROM room_history WHERE id IN (");
+        for(int i = 0; i < ids.length; i++)
+            sql.append(i == 0 ? "?" : ",?");
+        sql.append(") ORDER BY id DESC");
+        int appended = 0;
+        try {
+            PreparedStatement preparedStatement = connect.prepareStatement(sql.toString());
+            for(int i = 0; i < ids.length; i++)
+                preparedStatement.setLong(i + 1, ids[i]);
+            ResultSet rs = preparedStatement.executeQuery();
+            while(rs.next() && appended < limit){
+                String message = rs.getString("message");
+                if(!containsPhrases(message, phrases))
+                    continue;
+                stringBuilder.append(rs.getString("room")).append(" - ").append(rs.getString("username"))
+                        .append(": ").append(message).append("\n");
+                appended++;
+            }
+        } catch(SQLException e){
+            System.out.println("Error in reading search results");
+            System.out.println(e.getMessage());
+        }
+        return appended;
+    }
+
+    /**
+     * Determine whether a message contains every phrase
+     * @param message contents of the message
+     * @param phrases each phrase as a list of words
+     * @return True - every phrase appears in order. False - a phrase is missing
+     */
+    private static boolean containsPhrases(String message, List<List<String>> phrases){
+        if(phrases.isEmpty())
+            return true;
+        List<String> words = tokenize(message);
+        for(List<String> phrase : phrases){
+            if(Collections.indexOfSubList(words, phrase) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Split text into lower case words
+     * @param text the text to split
+     * @return the words in order
+     */
+    private static List<String> tokenize(String text){
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++){
+            boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(wordCharacter && start < 0)
+                start = i;
+            else if(!wordCharacter && start >= 0){
+                words.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
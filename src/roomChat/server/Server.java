@@ -10,39 +10,103 @@ package roomChat.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import javax.net.ssl.SSLContext;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import javax.net.ssl.SSLSessionContext;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.sql.*;
 import java.util.*;
 import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Server {
 
     private static final int SERVER_PORT = 30000;
+    private static final int WEBSOCKET_PORT = Integer.getInteger("roomChat.webSocketPort", 30001);
+    private static final boolean TLS = Boolean.getBoolean("roomChat.tls");
+    private static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("roomChat.tlsSessionCacheSize", 20000);
+    private static final int TLS_SESSION_TIMEOUT = Integer.getInteger("roomChat.tlsSessionTimeoutSeconds", 3600);
+    private static final int MAILBOX_SIZE = Integer.getInteger("roomChat.mailboxSize", 100);
+    private static final int MAILBOX_BATCH_SIZE = 50;
+    private static final int CREDENTIAL_CACHE_SIZE = Integer.getInteger("roomChat.credentialCacheSize", 10000);
+    private static final Path SNAPSHOT_FILE = Path.of(System.getProperty("roomChat.snapshotFile", "server.snapshot"));
+    private static final long SESSION_TIMEOUT = Integer.getInteger("roomChat.sessionTimeoutSeconds", 300) * 1_000_000_000L;
+    private static final long SEARCH_INDEX_CLOSE_TIMEOUT = 10000; // milliseconds /END waits for queued history to be stored
     private static ServerSocket serverSocket;
-    private static final HashSet<Room> rooms = new HashSet<>();
-    private static final HashMap<String, ClientHandler> clients = new HashMap<>(); // List of active clients with handlers
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // Active rooms by lower case name
+    private static final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>(); // List of active clients with handlers
+    private static final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>(); // Resumable sessions by sessionKey(token)
+    private static final SecureRandom random = new SecureRandom();
+    private static final ContentFilter contentFilter = new ContentFilter(Path.of("filtered_words.txt"));
+    private static final TimingWheel idleTimeouts = new TimingWheel(100, 512);
+    private static SearchIndex searchIndex;
+    private static BloomFilter userNames; // Every registered username, null if it could not be loaded
+    private static final LruCache<String, String> passwordHashes = new LruCache<>(CREDENTIAL_CACHE_SIZE); // Recently seen users
+    private static volatile TrafficRecorder trafficRecorder; // Set while /RECORD is capturing traffic
+    private static Recording traceRecording; // Set while /TRACE is recording
+    private static Snapshot snapshot; // Left by the last /END, rooms are restored from it as they are used
+    private static volatile boolean shuttingDown = false;
     static Connection connect = null; // Connection to database
 
+    /**
+     * A logged in user that can reconnect with a token instead of a password
+     */
+    private static final class Session {
+        private final String userName;
+        private ClientHandler owner; // Connection using the session, null while disconnected
+        private long expiresAt; // System.nanoTime() the session expires at while disconnected
+
+        private Session(String userName, ClientHandler owner) {
+            this.userName = userName;
+            this.owner = owner;
+        }
+    }
+
     public static void main(String[] args) throws IOException{
 
         connectToDatabase();
         // Set everyone to offline upon startup to ensure log in functionality after reboot
         markAllUsersOffline();
+        loadUserNames();
+        loadSnapshot();
+        // Read the client settings now so a bad value is reported before anyone connects
+        System.out.println("Clients over their rate limit: " + ClientHandler.getRateLimitAction());
+        System.out.println(contentFilter.reload() + " words loaded into the content filter");
+        startSearchIndex();
         Scanner scanner = new Scanner(System.in);
-        serverSocket = new ServerSocket(SERVER_PORT);
+        serverSocket = TLS ? createTlsServerSocket(SERVER_PORT) : new ServerSocket(SERVER_PORT);
+        ServerSocket webSocketServerSocket = TLS ? createTlsServerSocket(WEBSOCKET_PORT) : new ServerSocket(WEBSOCKET_PORT);
+
+        // Time out idle connections
+        Thread idleTimeoutThread = new Thread(idleTimeouts);
+        idleTimeoutThread.setDaemon(true);
+        idleTimeoutThread.start();
 
         // Listen for clients
         new Thread(() -> {
             try {
-                listen(serverSocket);
+                listen(serverSocket, false);
             } catch (IOException e) {
-                System.out.println("Error in listening. Server offline"); //happens when connect from browser, modify listen method to continue
+                System.out.println("Error in listening. Server offline");
                 System.out.println(e.getMessage());
                 disconnectFromDatabase();
                 System.exit(-1);
             }
         }).start();
 
+        // Listen for browsers
+        new Thread(() -> {
+            try {
+                listen(webSocketServerSocket, true);
+            } catch (IOException e) {
+                System.out.println("Error in listening for WebSocket clients");
+                System.out.println(e.getMessage());
+            }
+        }).start();
+
         // Read in commands
         System.out.println("Startup successful. Listening for commands on stdin");
         while(true){
@@ -52,14 +116,41 @@ public class Server {
 
     /** Listen for new clients and send them to room "Main"
      * @param serverSocket This servers socket
-     * @throws IOException Indicates an unknown request has been made (GET/POST etc.)
+     * @param webSocket True - clients are browsers using WebSocket. False - clients use ClientChat.java
+     * @throws IOException Indicates the server socket has failed
      */
-    private static void listen(ServerSocket serverSocket) throws IOException {
-        System.out.println("Server is listening");
+    private static void listen(ServerSocket serverSocket, boolean webSocket) throws IOException {
+        System.out.println("Server is listening on port " + serverSocket.getLocalPort());
         while(true){
             Socket socket = serverSocket.accept();
+            if(shuttingDown){ // Let clients reconnect to the restarted server instead
+                socket.close();
+                continue;
+            }
             System.out.println("client connected");
-            new Thread(new ClientHandler(socket, "Main")).start();
+            if(webSocket)
+                new Thread(new WebSocketClientHandler(socket, "Main")).start();
+            else
+                new Thread(new ClientHandler(socket, "Main")).start();
+        }
+    }
+
+    /** Create a TLS server socket from the keystore in the javax.net.ssl.keyStore system properties
+     *  Sessions are cached so reconnecting clients can resume them instead of doing a full handshake
+     * @param port the port to listen on
+     * @return the server socket
+     * @throws IOException Indicates the keystore could not be loaded or the port is in use
+     */
+    private static ServerSocket createTlsServerSocket(int port) throws IOException {
+        try {
+            SSLContext context = SSLContext.getDefault();
+            SSLSessionContext sessionContext = context.getServerSessionContext();
+            sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT);
+            System.out.println("TLS enabled");
+            return context.getServerSocketFactory().createServerSocket(port);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
         }
     }
 
@@ -71,7 +162,11 @@ public class Server {
 
         if(commandLine[0].equalsIgnoreCase("/END")){
             System.out.println("Shutting down");
+            shuttingDown = true; // Stops accepting, dispatching and broadcasting, so the snapshot is the rooms' final state
             serverBroadcast(new Message("Server is being shut down", Message.TYPE.SERVER_BROADCAST));
+            saveSnapshot();
+            stopRecording();
+            stopSearchIndex();
             markAllUsersOffline();
             disconnectFromDatabase();
             System.exit(-1);
@@ -84,16 +179,315 @@ public class Server {
             } catch(NullPointerException n){
                 System.out.println("User not found");
             }
+        } else if(commandLine[0].equalsIgnoreCase("/FILTER")){
+            System.out.println(contentFilter.reload() + " words loaded into the content filter");
+        } else if(commandLine[0].equalsIgnoreCase("/STATS")){
+            System.out.println(getStats());
+        } else if(commandLine[0].equalsIgnoreCase("/RECORD")){
+            if(commandLine.length > 2 && commandLine[1].equalsIgnoreCase("start"))
+                startRecording(Path.of(commandLine[2]));
+            else if(commandLine.length > 1 && commandLine[1].equalsIgnoreCase("stop"))
+                stopRecording();
+            else
+                System.out.println("Usage: /RECORD start file | /RECORD stop");
+        } else if(commandLine[0].equalsIgnoreCase("/TRACE")){
+            if(commandLine.length > 1 && commandLine[1].equalsIgnoreCase("start"))
+                startTrace();
+            else if(commandLine.length > 2 && commandLine[1].equalsIgnoreCase("stop"))
+                stopTrace(Path.of(commandLine[2]));
+            else
+                System.out.println("Usage: /TRACE start | /TRACE stop file");
         } else{
             System.out.println("Command not recognized");
         }
     }
 
-    /** Remove a room from the list of rooms.
+    /** Get a report on connected clients, their send queues and memory use
+     * @return a String of the connection count, messages waiting to be sent, and used heap
+     */
+    private static String getStats(){
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        int connections = clients.size();
+        long queued = 0;
+        int mostQueued = 0;
+        String slowest = null;
+        for(ClientHandler client : clients.values()){
+            int waiting = client.getQueuedMessages();
+            queued += waiting;
+            if(waiting > mostQueued){
+                mostQueued = waiting;
+                slowest = client.getUserName();
+            }
+        }
+        StringBuilder stringBuilder = new StringBuilder("STATS\n--------------\n");
+        stringBuilder.append("Connections: ").append(connections).append("\n");
+        stringBuilder.append("Rooms: ").append(rooms.size()).append("\n");
+        stringBuilder.append("Chat messages waiting to be sent: ").append(queued).append("\n");
+        if(slowest != null)
+            stringBuilder.append("Most waiting for one connection: ").append(mostQueued).append(" (").append(slowest).append(")\n");
+        // Includes the search index and caches, so it is not divided between connections
+        stringBuilder.append("Used heap, whole server: ").append(usedHeap / 1024).append(" KB\n");
+        stringBuilder.append(Compression.getStats());
+        stringBuilder.append("Credential cache: ").append(passwordHashes.getStats()).append("\n");
+        stringBuilder.append("--------------");
+        return stringBuilder.toString();
+    }
+
+    /** Run a task once a deadline has passed on the server's timing wheel
+     * @param task the task to run
+     * @param deadline System.nanoTime() after which the task runs
+     */
+    public static void scheduleTimeout(TimingWheel.Task task, long deadline){
+        idleTimeouts.schedule(task, deadline);
+    }
+
+    /** Store the chat history still queued for the search index and stop its thread
+     *  Must run before the database is shut down
+     */
+    private static void stopSearchIndex(){
+        if(searchIndex == null)
+            return;
+        try {
+            if(!searchIndex.close(SEARCH_INDEX_CLOSE_TIMEOUT))
+                System.out.println("Search index did not finish storing history in time, some messages were not saved");
+        } catch(InterruptedException e){
+            System.out.println("Interrupted while storing history");
+        }
+    }
+
+    /** Determine whether /END is shutting the server down
+     * @return True - nothing more is accepted, dispatched or broadcast
+     */
+    public static boolean isShuttingDown(){
+        return shuttingDown;
+    }
+
+    /** Load the search index and start storing chat messages in the background
+     *  Clients can connect while the index loads, searches are refused until it is done
+     */
+    private static void startSearchIndex(){
+        searchIndex = new SearchIndex(connect);
+        Thread indexThread = new Thread(searchIndex);
+        indexThread.setDaemon(true);
+        indexThread.start();
+    }
+
+    /** Store a chat message in the room history so it can be searched
+     * @param room name of the room the message was sent to
+     * @param userName name of the sender
+     * @param message contents of the message
+     */
+    public static void recordMessage(String room, String userName, String message){
+        if(searchIndex != null)
+            searchIndex.add(room, userName, message);
+    }
+
+    /** Search the room history
+     * @param query the words, "phrases" and room:name to search for
+     * @return formatted search results
+     */
+    public static String searchHistory(String query){
+        if(searchIndex == null || query == null)
+            return "Search is not available";
+        return searchIndex.search(query, 20);
+    }
+
+    /** Start capturing every frame received from clients to a file
+     * @param file the capture file, replaced if it exists
+     */
+    private static synchronized void startRecording(Path file){
+        if(trafficRecorder != null){
+            System.out.println("Already recording, use /RECORD stop first");
+            return;
+        }
+        try {
+            trafficRecorder = new TrafficRecorder(file);
+            System.out.println("Recording traffic to " + file);
+        } catch(IOException e){
+            System.out.println("Could not record to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Stop capturing traffic, if a capture is running
+     */
+    private static synchronized void stopRecording(){
+        TrafficRecorder recorder = trafficRecorder;
+        if(recorder == null)
+            return;
+        trafficRecorder = null;
+        System.out.println(recorder.close() + " frames recorded");
+    }
+
+    /** Save the rooms, their recent history and resumable sessions so clients can resume after a restart
+     */
+    private static void saveSnapshot(){
+        long now = System.nanoTime();
+        List<Snapshot.SavedSession> saved = new ArrayList<>();
+        for(Map.Entry<String, Session> entry : sessions.entrySet()){
+            Session session = entry.getValue();
+            long remaining;
+            synchronized (session){
+                remaining = session.owner != null ? SESSION_TIMEOUT : session.expiresAt - now;
+            }
+            if(remaining > 0)
+                saved.add(new Snapshot.SavedSession(entry.getKey(), session.userName, remaining));
+        }
+        try {
+            Path written = Snapshot.save(SNAPSHOT_FILE, saved, rooms.values(), snapshot);
+            System.out.println(rooms.size() + " rooms and " + saved.size() + " sessions saved to " + written);
+        } catch(IOException e){
+            System.out.println("Could not save snapshot: " + e.getMessage());
+        }
+    }
+
+    /** Map the snapshot left by the last /END and restore its sessions
+     *  Rooms are only restored once they are used. A snapshot older than the session timeout is ignored without being mapped
+     */
+    private static void loadSnapshot(){
+        try {
+            long savedAt = Snapshot.getSavedAt(SNAPSHOT_FILE);
+            if(savedAt == 0)
+                return;
+            long downtime = (System.currentTimeMillis() - savedAt) * 1_000_000L;
+            if(downtime > SESSION_TIMEOUT){
+                System.out.println("Snapshot is too old to resume from, starting fresh");
+                return;
+            }
+            Snapshot loaded = Snapshot.open(SNAPSHOT_FILE);
+            if(loaded == null)
+                return;
+            downtime = (System.currentTimeMillis() - loaded.getSavedAt()) * 1_000_000L;
+            long now = System.nanoTime();
+            int restored = 0;
+            for(Snapshot.SavedSession saved : loaded.getSessions()){
+                long remaining = saved.getRemainingNanos() - downtime;
+                if(remaining <= 0)
+                    continue;
+                Session session = new Session(saved.getUserName(), null);
+                session.expiresAt = now + remaining;
+                sessions.put(saved.getTokenHash(), session);
+                scheduleExpiry(saved.getTokenHash(), session);
+                restored++;
+            }
+            snapshot = loaded;
+            System.out.println(restored + " sessions restored, " + loaded.getRoomCount() + " rooms waiting to be restored");
+        } catch(IOException e){
+            System.out.println("Could not load snapshot: " + e.getMessage());
+        }
+    }
+
+    /** Start a flight recording of the time each message spends in each stage
+     */
+    private static synchronized void startTrace(){
+        if(traceRecording != null){
+            System.out.println("Already tracing, use /TRACE stop file first");
+            return;
+        }
+        try {
+            Recording recording = new Recording();
+            recording.setName("Room Chat trace");
+            for(Class<? extends Event> type : TraceEvents.TYPES)
+                recording.enable(type);
+            recording.start();
+            traceRecording = recording;
+            System.out.println("Tracing started");
+        } catch(IllegalStateException | SecurityException e){
+            System.out.println("Flight recorder is not available: " + e.getMessage());
+        }
+    }
+
+    /** Stop the flight recording, save it and print the time spent in each stage
+     * @param file the file to save the recording to
+     */
+    private static synchronized void stopTrace(Path file){
+        if(traceRecording == null){
+            System.out.println("Not tracing, use /TRACE start first");
+            return;
+        }
+        try {
+            traceRecording.stop();
+            traceRecording.dump(file);
+            System.out.println("Trace saved to " + file);
+            System.out.println(TraceAnalyzer.analyze(file));
+        } catch(IOException e){
+            System.out.println("Could not save the trace: " + e.getMessage());
+        } finally {
+            traceRecording.close();
+            traceRecording = null;
+        }
+    }
+
+    /** Add a frame received from a client to the traffic capture, if one is running
+     *  Passwords are replaced and session tokens by the username, so a capture can be replayed on a fresh server
+     * @param client the client the frame was received from
+     * @param message the frame received
+     */
+    public static void recordTraffic(ClientHandler client, Message message){
+        TrafficRecorder recorder = trafficRecorder;
+        if(recorder == null)
+            return;
+        Message.TYPE type = message.getType();
+        if((type == Message.TYPE.LOGIN || type == Message.TYPE.REGISTER || type == Message.TYPE.RESUME) && message.getMessage() != null){
+            String[] parts = message.getMessage().split(" ", 2);
+            String first = parts[0];
+            String rooms = ""; // Rooms a RESUME rejoins, with their epochs and sequence numbers
+            if(type == Message.TYPE.RESUME){
+                Session session = sessions.get(sessionKey(first));
+                if(session == null)
+                    return; // Would be denied anyway
+                first = session.userName;
+                rooms = parts.length > 1 ? " " + parts[1] : "";
+            }
+            message = new Message(first + " " + TrafficRecorder.REPLAY_PASSWORD + rooms, type);
+        }
+        recorder.record(client.getConnectionId(), message);
+    }
+
+    /** Add a closed connection to the traffic capture, if one is running
+     * @param client the client that disconnected
+     */
+    public static void recordDisconnect(ClientHandler client){
+        TrafficRecorder recorder = trafficRecorder;
+        if(recorder != null)
+            recorder.recordDisconnect(client.getConnectionId());
+    }
+
+    /** Mask inappropriate language in a message's contents
+     * @param text the contents of a message
+     * @return the contents with filtered words masked
+     */
+    public static String filterMessage(String text){
+        return contentFilter.mask(text);
+    }
+
+    /** Remove a room from the list of rooms if nobody has joined it since it was emptied
+     *  Checked inside rooms.computeIfPresent, so it can not race joinRoom, and only this instance is removed
      * @param room The room to be removed
+     * @return True - the room was removed. False - it is in use again or was already replaced
+     */
+    public static boolean removeRoom(Room room){
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room.getRoomName().toLowerCase(), (key, existing) -> {
+            removed[0] = existing == room && room.isEmpty();
+            return removed[0] ? null : existing;
+        });
+        return removed[0];
+    }
+
+    /** Get a room and add a client to its list of clients, creating the room if it does not exist
+     *  The client is added inside rooms.compute, so an emptied room can not be removed between being found and joined
+     *  and the client never ends up in a room that is no longer listed
+     * @param name the name of the room to join
+     * @param clientHandler the clientHandler of the joining client
+     * @return the room joined
      */
-    public static void removeRoom(Room room){
-        rooms.remove(room);
+    public static Room joinRoom(String name, ClientHandler clientHandler){
+        return rooms.compute(name.toLowerCase(), (key, existing) -> {
+            Room room = existing != null ? existing : createRoom(name);
+            room.join(clientHandler);
+            return room;
+        });
     }
 
     /** Get a room instance
@@ -102,21 +496,16 @@ public class Server {
      * @return room instance of the name entered
      */
     public static Room getRoom(String name){
-        for(Room room: rooms){
-            if(room.getRoomName().equalsIgnoreCase(name))
-                return room;
-        }
-        return createRoom(name);
+        return rooms.computeIfAbsent(name.toLowerCase(), key -> createRoom(name));
     }
 
-    /** Create a room instance
+    /** Create a room instance, restoring it from the snapshot if it was saved in one
      * @param name the name of the room to create
      * @return the newly created room instance
      */
     private static Room createRoom(String name){
-        Room newRoom = new Room(name);
-        rooms.add(newRoom);
-        return newRoom;
+        Room restored = snapshot == null ? null : snapshot.restoreRoom(name);
+        return restored != null ? restored : new Room(name);
     }
 
     /** Determine whether a name is taken by a user in RoomChatDatabase
@@ -124,21 +513,54 @@ public class Server {
      * @return True - Name is taken. False - Name is not taken
      */
     public static boolean isNameTaken(String name){
-        boolean result = false;
+        return getPasswordHash(name) != null;
+    }
+
+    /** Get a user's hashed password
+     *  Names that were never registered are answered by the bloom filter and recent users by the cache,
+     *  only the rest are looked up in RoomChatDatabase
+     * @param name the name of the user
+     * @return the hashed password, null if the user does not exist
+     */
+    private static String getPasswordHash(String name){
+        if(userNames != null && !userNames.mightContain(name))
+            return null;
+        String hashedPassword = passwordHashes.get(name);
+        if(hashedPassword != null)
+            return hashedPassword;
         try {
-            PreparedStatement preparedStatement = connect.prepareStatement("SELECT username FROM user_info WHERE username=?");
+            PreparedStatement preparedStatement = connect.prepareStatement("SELECT password FROM user_info WHERE username=?");
             preparedStatement.setString(1, name);
             ResultSet rs = preparedStatement.executeQuery();
             if(rs.next()) {
-                String query = rs.getString("username");
-                if (query.equals(name))
-                    result = true;
+                hashedPassword = rs.getString("password");
+                if(hashedPassword != null)
+                    passwordHashes.put(name, hashedPassword);
             }
         } catch(SQLException e){
             System.out.println("error in name taken");
             System.out.println(e.getMessage());
         }
-        return result;
+        return hashedPassword;
+    }
+
+    /** Load every registered username into the bloom filter
+     *  The filter has room for twice the current users so registrations keep it accurate
+     */
+    private static void loadUserNames(){
+        try {
+            Statement statement = connect.createStatement();
+            ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM user_info");
+            int users = count.next() ? count.getInt(1) : 0;
+            BloomFilter filter = new BloomFilter(Math.max(2 * users, 100_000), 0.01);
+            ResultSet rs = statement.executeQuery("SELECT username FROM user_info");
+            while(rs.next())
+                filter.add(rs.getString("username"));
+            userNames = filter;
+            System.out.println(users + " usernames loaded into the bloom filter");
+        } catch(SQLException e){
+            System.out.println("Error in loading usernames, every name will be looked up in the database");
+        }
     }
 
     /** Mark a user as online in RoomChatDatabase
@@ -162,16 +584,114 @@ public class Server {
      * @param clientHandler the clientHandler of the client to set offline
      */
     public static void setClientOffline(ClientHandler clientHandler){
+        if(!clients.remove(clientHandler.getUserName(), clientHandler))
+            return; // User has already resumed on a new connection
         try {
             PreparedStatement preparedStatement = connect.prepareStatement("UPDATE user_info SET connected=false WHERE username=?");
             preparedStatement.setString(1, clientHandler.getUserName());
             preparedStatement.executeUpdate();
             System.out.println(clientHandler.getUserName()  + " set offline");
-            clients.remove(clientHandler.getUserName());
         } catch (SQLException e){
             System.out.println("Error in setting client offline");
         }
+        suspendSession(clientHandler);
+    }
 
+    /** Start a resumable session for a client that has logged in
+     * @param clientHandler the clientHandler of the client
+     * @return the session token
+     */
+    private static String startSession(ClientHandler clientHandler){
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for(byte b : bytes)
+            token.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        sessions.put(sessionKey(token.toString()), new Session(clientHandler.getUserName(), clientHandler));
+        clientHandler.setSessionToken(token.toString());
+        return token.toString();
+    }
+
+    /** Keep a disconnected client's session for SESSION_TIMEOUT so they can resume it
+     * @param clientHandler the clientHandler of the disconnected client
+     */
+    private static void suspendSession(ClientHandler clientHandler){
+        String key = clientHandler.getSessionToken() == null ? null : sessionKey(clientHandler.getSessionToken());
+        Session session = key == null ? null : sessions.get(key);
+        if(session == null)
+            return;
+        synchronized (session){
+            if(session.owner != clientHandler)
+                return;
+            session.owner = null;
+            session.expiresAt = System.nanoTime() + SESSION_TIMEOUT;
+        }
+        scheduleExpiry(key, session);
+    }
+
+    /** Remove a session once it has expired, unless it was resumed first
+     * @param key the session's key
+     * @param session the session
+     */
+    private static void scheduleExpiry(String key, Session session){
+        scheduleTimeout(now -> {
+            synchronized (session){
+                if(session.owner == null && now - session.expiresAt >= 0)
+                    sessions.remove(key, session);
+            }
+            return TimingWheel.CANCEL;
+        }, session.expiresAt);
+    }
+
+    /** End a client's session so it can not be resumed
+     * @param clientHandler the clientHandler of the client
+     */
+    public static void endSession(ClientHandler clientHandler){
+        if(clientHandler.getSessionToken() != null)
+            sessions.remove(sessionKey(clientHandler.getSessionToken()));
+    }
+
+    /** Get the key a session is kept under
+     *  Only a hash of the token is kept, so neither memory nor a snapshot holds a token that can be resumed
+     * @param token the token the client was given
+     * @return the token hashed with SHA-256
+     */
+    private static String sessionKey(String token){
+        return hashPassword(token);
+    }
+
+    /** Resume a session on a new connection without verifying the password
+     * A connection still holding the session is closed, as it is most likely dead
+     * @param client The client clientHandler object
+     * @param request session token, then a room name, epoch and last sequence number received for each room,
+     *                starting with the room the client chats in
+     * @return Message on the status of the resume
+     */
+    public static Message resumeSession(ClientHandler client, String[] request){
+        boolean wellFormed = request.length >= 4 && request.length % 3 == 1;
+        for(int i = 1; wellFormed && i < request.length; i += 3)
+            wellFormed = Room.isValidName(request[i]) && request[i + 1].matches("\\d{1,18}") && request[i + 2].matches("\\d{1,18}");
+        if(!wellFormed)
+            return new Message("Malformed resume request", Message.TYPE.LOGIN_DENIED);
+        String key = sessionKey(request[0]);
+        Session session = sessions.get(key);
+        if(session == null)
+            return new Message("Session expired, please log in again", Message.TYPE.LOGIN_DENIED);
+        ClientHandler previous;
+        synchronized (session){
+            if(session.owner == null && System.nanoTime() - session.expiresAt >= 0){
+                sessions.remove(key, session);
+                return new Message("Session expired, please log in again", Message.TYPE.LOGIN_DENIED);
+            }
+            previous = session.owner;
+            session.owner = client;
+        }
+        if(previous != null)
+            previous.disconnect();
+        client.setUserName(session.userName);
+        client.setSessionToken(request[0]);
+        setClientOnline(client);
+        return new Message(request[0], Message.TYPE.LOGIN_SUCCESS);
     }
 
     /** Determine whether a user is online
@@ -198,7 +718,7 @@ public class Server {
      */
     public static String getRoomOccupancy(){
         StringBuilder stringBuilder = new StringBuilder("ROOMS\n--------------\n");
-        for (Room room: rooms){
+        for (Room room: rooms.values()){
             stringBuilder.append(room).append("\n");
         }
         stringBuilder.append("--------------");
@@ -206,11 +726,135 @@ public class Server {
     }
 
     /** Broadcast a message to all clients in every room.
+     *  Only queued by the rooms, then written by flushClients so a client that stopped reading can not hang the console
      * @param message text to broadcast
      */
     private static void serverBroadcast(Message message){
-        for(Room room: rooms){
-            room.broadcast(null, message);
+        Message announcement = Room.createAnnouncement(message);
+        for(Room room: rooms.values()){
+            room.announce(announcement);
+        }
+        flushClients();
+    }
+
+    /** Send a direct message from one user to another
+     *  Goes straight to the recipient's connection, or to their mailbox if they are offline
+     * @param sender the clientHandler of the sending client
+     * @param request recipient's username followed by the message
+     * @throws IOException indicates connection error to the sender's socket
+     */
+    public static void sendDirectMessage(ClientHandler sender, String request) throws IOException {
+        String[] parts = request == null ? new String[0] : request.strip().split(" ", 2);
+        if(parts.length < 2 || parts[1].isBlank()){
+            sender.send(new Message("Usage: /msg user message"));
+            return;
+        }
+        String recipient = parts[0];
+        String text = filterMessage(parts[1].strip());
+        if(recipient.equals(sender.getUserName())){
+            sender.send(new Message("You can not message yourself"));
+            return;
+        }
+        ClientHandler recipientHandler = clients.get(recipient);
+        if(recipientHandler != null && recipientHandler.sendDirect(sender.getUserName(), text)){
+            sender.send(new Message("[Direct to " + recipient + "]: " + text, Message.TYPE.DIRECT));
+            return;
+        }
+        if(!isNameTaken(recipient))
+            sender.send(new Message("User " + recipient + " does not exist"));
+        else if(storeInMailbox(recipient, sender.getUserName(), text))
+            sender.send(new Message(recipient + " is offline, your message will be delivered when they log in", Message.TYPE.DIRECT));
+        else
+            sender.send(new Message(recipient + "'s mailbox is full"));
+    }
+
+    /** Pass on the direct messages a closed connection never wrote
+     *  They go to the user's new connection if they have already resumed, otherwise to their mailbox
+     * @param client the clientHandler of the closed connection
+     */
+    public static void returnUnsentDirect(ClientHandler client){
+        for(String[] unsent : client.takeUnsentDirect()){
+            ClientHandler current = clients.get(client.getUserName());
+            if((current == null || !current.sendDirect(unsent[0], unsent[1])) && !storeInMailbox(client.getUserName(), unsent[0], unsent[1]))
+                System.out.println("Direct message to " + client.getUserName() + " from " + unsent[0] + " could not be stored");
+        }
+    }
+
+    /** Store a direct message for an offline user
+     * @param recipient username of the recipient
+     * @param sender username of the sender
+     * @param text contents of the message
+     * @return True - message stored. False - mailbox full or database error
+     */
+    private static boolean storeInMailbox(String recipient, String sender, String text){
+        try {
+            PreparedStatement count = connect.prepareStatement("SELECT COUNT(*) FROM mailbox WHERE recipient=?");
+            count.setString(1, recipient);
+            ResultSet rs = count.executeQuery();
+            if(rs.next() && rs.getInt(1) >= MAILBOX_SIZE)
+                return false;
+            PreparedStatement insert = connect.prepareStatement("INSERT INTO mailbox(recipient, sender, message, sent_at) VALUES(?,?,?,?)");
+            insert.setString(1, recipient);
+            insert.setString(2, sender);
+            insert.setString(3, text);
+            insert.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            insert.executeUpdate();
+            return true;
+        } catch(SQLException e){
+            System.out.println("Error in storing direct message");
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /** Deliver direct messages sent to a user while they were offline, in batches
+     *  Rows are deleted once their messages are queued with sendDirect, which hands any the connection
+     *  closes before writing back to returnUnsentDirect, so a message is never lost in between
+     * @param client the clientHandler of the client who has logged in
+     */
+    public static void deliverMailbox(ClientHandler client){
+        try {
+            PreparedStatement select = connect.prepareStatement("SELECT id, sender, message FROM mailbox WHERE recipient=? ORDER BY id FETCH FIRST " + MAILBOX_BATCH_SIZE + " ROWS ONLY");
+            PreparedStatement delete = connect.prepareStatement("DELETE FROM mailbox WHERE recipient=? AND id<=?");
+            select.setString(1, client.getUserName());
+            delete.setString(1, client.getUserName());
+            while(true){
+                ResultSet rs = select.executeQuery();
+                long lastId = -1;
+                boolean closed = false;
+                while(rs.next()){
+                    if(!client.sendDirect(rs.getString("sender"), rs.getString("message"))){
+                        closed = true; // The rest stay in the mailbox for the next log in
+                        break;
+                    }
+                    lastId = rs.getLong("id");
+                }
+                if(lastId >= 0){
+                    delete.setLong(2, lastId);
+                    delete.executeUpdate();
+                }
+                if(closed || lastId < 0){
+                    if(closed)
+                        System.out.println("Client disconnected while delivering mailbox");
+                    return;
+                }
+            }
+        } catch(SQLException e){
+            System.out.println("Error in delivering mailbox");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /** Wait for every queued message to be written to every client
+     */
+    private static void flushClients(){
+        long deadline = System.nanoTime() + ClientHandler.FLUSH_TIMEOUT; // One deadline for all, so stuck clients do not add up
+        for(ClientHandler client : clients.values()){
+            try {
+                client.flush(deadline);
+            } catch(IOException e){
+                System.out.println("Error in flushing " + client.getUserName());
+            }
         }
     }
 
@@ -220,18 +864,8 @@ public class Server {
      * @return True - Correct password. False - Incorrect password
      */
     private static boolean VerifyPassword(String user, String password){
-        String hashedPassword = hashPassword(password);
-        boolean result = false;
-        try {
-            PreparedStatement preparedStatement = connect.prepareStatement("SELECT password FROM user_info WHERE username=?");
-            preparedStatement.setString(1, user);
-            ResultSet rs = preparedStatement.executeQuery();
-            if(rs.next())
-                result =  rs.getString("password").equals(hashedPassword);
-        } catch (SQLException e){
-            System.out.println("error in verify password");
-        }
-        return result;
+        String hashedPassword = getPasswordHash(user);
+        return hashedPassword != null && hashedPassword.equals(hashPassword(password));
     }
 
     /** Register a client to the RoomChatDatabase
@@ -250,6 +884,9 @@ public class Server {
             createUser.setString(1, username);
             createUser.setString(2, hashPassword(password));
             createUser.executeUpdate();
+            passwordHashes.invalidate(username);
+            if(userNames != null)
+                userNames.add(username);
             System.out.println(username + " has been put in the database");
         } catch (SQLException e){
             System.out.println("error in create user");
@@ -273,7 +910,7 @@ public class Server {
         }
         client.setUserName(username);
         setClientOnline(client);
-        return new Message(Message.TYPE.LOGIN_SUCCESS);
+        return new Message(startSession(client), Message.TYPE.LOGIN_SUCCESS);
     }
 
     /** Connect to the RoomChatDatabase
@@ -294,6 +931,21 @@ public class Server {
                 state.execute("create table user_info(username varchar(100) not NULL, password varchar(100), connected boolean, PRIMARY KEY(username))");
                 System.out.println("user_info created");
             }
+            result = dbm.getTables(null, null, "ROOM_HISTORY", null);
+            if (result.next()) {
+                System.out.println("room_history exists");
+            } else {
+                state.execute("create table room_history(id bigint not NULL, room varchar(100), username varchar(100), message long varchar, sent_at timestamp, PRIMARY KEY(id))");
+                System.out.println("room_history created");
+            }
+            result = dbm.getTables(null, null, "MAILBOX", null);
+            if (result.next()) {
+                System.out.println("mailbox exists");
+            } else {
+                state.execute("create table mailbox(id bigint generated always as identity, recipient varchar(100) not NULL, sender varchar(100), message long varchar, sent_at timestamp, PRIMARY KEY(id))");
+                state.execute("create index mailbox_recipient on mailbox(recipient, id)");
+                System.out.println("mailbox created");
+            }
         } catch(SQLException e){
             System.out.println(e.getMessage());
         }
@@ -0,0 +1,320 @@
+/**
+ * Snapshot.java
+ * @author Daniel Tregea
+ * Saves the rooms, their recent history and the resumable sessions when the server is shut down with /END,
+ * so clients that reconnect after a restart resume where they left off.
+ * On startup the file is memory-mapped and only indexed, each room is read from it the first time it is used.
+ * A mapped file can not be replaced on every platform, so saves alternate between the file and a sibling
+ * ending in ".1", and the newest of the two is loaded.
+ * Sessions are saved by the SHA-256 of their token, the token itself never leaves the client, and the file
+ * can only be read by its owner where the file system has POSIX permissions.
+ *
+ * File format: "RSNP", int version, long time saved (milliseconds since the epoch),
+ * int session count, then per session: token hash, username, long nanoseconds left before it expires,
+ * int room count, then per room: name, long epoch, long sequence, int history count, history oldest first.
+ * Strings are an int length then UTF-8 bytes
+ */
+package roomChat.server;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Snapshot {
+    public static final int MAGIC = 0x52534e50; // "RSNP"
+    public static final int VERSION = 3;
+
+    /**
+     * A resumable session as saved in a snapshot
+     */
+    public static final class SavedSession {
+        private final String tokenHash;
+        private final String userName;
+        private final long remainingNanos; // Time left before the session expires
+
+        public SavedSession(String tokenHash, String userName, long remainingNanos) {
+            this.tokenHash = tokenHash;
+            this.userName = userName;
+            this.remainingNanos = remainingNanos;
+        }
+
+        public String getTokenHash() {
+            return tokenHash;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public long getRemainingNanos() {
+            return remainingNanos;
+        }
+    }
+
+    /**
+     * Where a room's record is in the file
+     */
+    private static final class Range {
+        private final int start;
+        private final int end;
+
+        private Range(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static volatile Path mapped; // File this process has mapped, it stays mapped until garbage collected even if it was not a snapshot
+    private final ByteBuffer buffer; // The whole mapped file, only ever read through duplicates
+    private final long savedAt;
+    private final List<SavedSession> sessions = new ArrayList<>();
+    private final ConcurrentHashMap<String, Range> rooms = new ConcurrentHashMap<>(); // Rooms not restored yet, by lower case name
+
+    /**
+     * Map the newest of the two files a snapshot alternates between and index the rooms in it
+     * Only the newest is mapped, so the other one can be replaced by the next save
+     * @param file the snapshot file
+     * @return the snapshot, null if neither file exists
+     * @throws IOException indicates the files could not be read or the newest is not a complete snapshot
+     */
+    public static Snapshot open(Path file) throws IOException {
+        Path newest = newest(file);
+        if(newest == null)
+            return null;
+        try(FileChannel channel = FileChannel.open(newest, StandardOpenOption.READ)){
+            mapped = newest;
+            return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Get when the newest of the two snapshot files was saved, without mapping it
+     * Checked before open() so a snapshot too old to resume from is never mapped
+     * @param file the snapshot file
+     * @return milliseconds since the epoch, 0 if neither file exists
+     * @throws IOException indicates the files could not be read or the newest is not a snapshot
+     */
+    public static long getSavedAt(Path file) throws IOException {
+        Path newest = newest(file);
+        if(newest == null)
+            return 0;
+        long savedAt = readSavedAt(newest);
+        if(savedAt == Long.MIN_VALUE)
+            throw new IOException("Not a server snapshot");
+        return savedAt;
+    }
+
+    /**
+     * Find the newest of the two files a snapshot alternates between
+     * @param file the snapshot file
+     * @return the newest file, null if neither exists
+     * @throws IOException indicates a file could not be read
+     */
+    private static Path newest(Path file) throws IOException {
+        Path newest = null;
+        long newestSavedAt = 0;
+        for(Path candidate : files(file)){
+            if(!Files.exists(candidate))
+                continue;
+            long savedAt = readSavedAt(candidate);
+            if(newest == null || savedAt > newestSavedAt){
+                newest = candidate;
+                newestSavedAt = savedAt;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Get the two files a snapshot alternates between
+     * @param file the snapshot file
+     * @return the file and its sibling ending in ".1"
+     */
+    private static Path[] files(Path file){
+        return new Path[]{file, file.resolveSibling(file.getFileName() + ".1")};
+    }
+
+    /**
+     * Read when a snapshot file was saved without mapping it
+     * @param file a snapshot file
+     * @return milliseconds since the epoch, Long.MIN_VALUE if the file is not a snapshot of this version
+     * @throws IOException indicates the file could not be read
+     */
+    private static long readSavedAt(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 16))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return Long.MIN_VALUE;
+            return in.readLong();
+        } catch(EOFException e){
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private Snapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        ByteBuffer in = buffer.duplicate();
+        try {
+            if(in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("Not a server snapshot");
+            savedAt = in.getLong();
+            int sessionCount = in.getInt();
+            for(int i = 0; i < sessionCount; i++){
+                String tokenHash = readString(in);
+                String userName = readString(in);
+                sessions.add(new SavedSession(tokenHash, userName, in.getLong()));
+            }
+            // Only find where each room is, its history is read when the room is first used
+            int roomCount = in.getInt();
+            for(int i = 0; i < roomCount; i++){
+                int start = in.position();
+                String name = readString(in);
+                in.getLong();
+                in.getLong();
+                int historyCount = in.getInt();
+                for(int j = 0; j < historyCount; j++){
+                    int length = readLength(in);
+                    in.position(in.position() + length);
+                }
+                rooms.put(name.toLowerCase(), new Range(start, in.position()));
+            }
+        } catch(BufferUnderflowException | IllegalArgumentException e){
+            throw new IOException("Snapshot is incomplete", e);
+        }
+    }
+
+    /**
+     * Get the time the snapshot was saved
+     * @return milliseconds since the epoch
+     */
+    public long getSavedAt() {
+        return savedAt;
+    }
+
+    /**
+     * Get the sessions saved in the snapshot
+     * @return the saved sessions
+     */
+    public List<SavedSession> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /**
+     * Get the amount of rooms that have not been restored yet
+     * @return rooms left in the snapshot
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Restore a room from the snapshot, once
+     * @param name name of the room, any case
+     * @return the room with its sequence number and history, null if it is not in the snapshot or was already restored
+     */
+    public Room restoreRoom(String name){
+        Range range = rooms.remove(name.toLowerCase());
+        if(range == null)
+            return null;
+        ByteBuffer in = buffer.duplicate();
+        in.position(range.start);
+        String roomName = readString(in);
+        long epoch = in.getLong();
+        long sequence = in.getLong();
+        String[] history = new String[in.getInt()];
+        for(int i = 0; i < history.length; i++)
+            history[i] = readString(in);
+        return new Room(roomName, epoch, sequence, history);
+    }
+
+    /**
+     * Save a snapshot to whichever of the two files this process has not mapped,
+     * replacing it only once it is complete
+     * Rooms from the previous snapshot that were never used are carried over as they are
+     * @param file the snapshot file
+     * @param sessions resumable sessions
+     * @param rooms rooms in use
+     * @param previous the snapshot the server started from, null if there was none
+     * @return the file written
+     * @throws IOException indicates the file could not be written
+     */
+    public static Path save(Path file, Collection<SavedSession> sessions, Collection<Room> rooms, Snapshot previous) throws IOException {
+        List<Range> unused = previous == null ? List.of() : new ArrayList<>(previous.rooms.values());
+        Path[] files = files(file);
+        Path target = files[0].equals(mapped) ? files[1] : files[0];
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        // Owner only from the moment it is created, sessions in it can be resumed
+        if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 65536))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(sessions.size());
+            for(SavedSession session : sessions){
+                writeString(out, session.tokenHash);
+                writeString(out, session.userName);
+                out.writeLong(session.remainingNanos);
+            }
+            List<Room> used = new ArrayList<>(rooms);
+            out.writeInt(used.size() + unused.size());
+            for(Room room : used)
+                room.writeSnapshot(out);
+            for(Range range : unused){
+                byte[] record = new byte[range.end - range.start];
+                previous.buffer.duplicate().position(range.start).get(record);
+                out.write(record);
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Write a string as an int length and UTF-8 bytes
+     * @param out the stream to write to
+     * @param text the string
+     * @throws IOException indicates the stream could not be written
+     */
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString
+     * @param in the buffer, positioned at the string
+     * @return the string
+     */
+    private static String readString(ByteBuffer in){
+        byte[] bytes = new byte[readLength(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the length of a string and check it fits in the rest of the buffer
+     * @param in the buffer, positioned at the string
+     * @return the length in bytes
+     */
+    private static int readLength(ByteBuffer in){
+        int length = in.getInt();
+        if(length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        return length;
+    }
+}
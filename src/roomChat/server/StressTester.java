@@ -0,0 +1,648 @@
+/**
+ * StressTester.java
+ * @author Daniel Tregea
+ * Drives a running server with many connections to check behaviour that only shows up under load.
+ * Usage: java roomChat.server.StressTester scenario [host] [port] [clients] [seconds]
+ * idle - logs clients in, kills half of them abruptly and leaves the other half connected but silent, then
+ *        measures how long the server takes to remove each half from its room. Start the server with a short
+ *        -DroomChat.idleTimeoutSeconds, at least 2, so the silent half is timed out quickly.
+ * resume - half the clients chat in Main for the given seconds while the other half keep having their connection
+ *          killed and resuming their session on a new one. Checks every resuming client receives each broadcast
+ *          exactly once, and measures how long resuming takes.
+ * control - all clients but one flood Main for the given seconds while the last one measures how long heartbeats
+ *           and ROOM_STATUS take to be answered, compared with its own chat messages. Start the server with raised
+ *           limits so the room is saturated, e.g. -DroomChat.messagesPerSecond=1000 -DroomChat.messageBurst=1000
+ *           -DroomChat.roomMessagesPerSecond=1000000 -DroomChat.roomMessageBurst=1000000
+ *           -DroomChat.roomCharactersPerSecond=100000000 -DroomChat.roomCharacterBurst=100000000
+ *           Run with -DroomChat.probeReadDelayMicros to make the measuring client a slow reader that falls behind.
+ * Rate limits on the server apply here too, raise the room limits with -D properties for a heavier load.
+ * Users are registered with random names, so the server needs no preparation.
+ */
+package roomChat.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLSocketFactory;
+
+public class StressTester {
+    private static final boolean TLS = Boolean.getBoolean("roomChat.tls");
+    private static final String PASSWORD = "stress-password";
+    private static final long LOG_IN_TIMEOUT = 10_000_000_000L;
+    private static final long CLEANUP_TIMEOUT = 300_000_000_000L; // Longest wait for the server to remove clients
+    private static final long POLL_INTERVAL = 250_000_000L; // ROOM_STATUS polls, slow enough for the default rate limit
+    private static final long HEARTBEAT_INTERVAL = 1_000_000_000L;
+    private static final long SEND_INTERVAL = 200_000_000L; // Chat messages per client, the default client rate limit
+    private static final long MAX_CONNECTION_LIFE = 500_000_000L; // Longest a resuming client stays connected
+    private static final long FLOOD_INTERVAL = 1_000_000L; // Chat messages per flooding client
+    private static final long PROBE_INTERVAL = 50_000_000L; // Heartbeats from the measuring client
+    private static final int PROBES_PER_REQUEST = 10; // ROOM_STATUS and chat every 10 heartbeats, within the default client rate limit
+    private static final long PROBE_READ_DELAY = Long.getLong("roomChat.probeReadDelayMicros", 0) * 1000; // Per chat message
+
+    private static volatile boolean running = true; // Cleared when a timed scenario ends
+
+    private static String host;
+    private static int port;
+
+    /**
+     * A client connection
+     */
+    private static final class Client {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final Thread reader;
+        private final CountDownLatch loggedIn = new CountDownLatch(1);
+        private volatile String userName;
+        private volatile String token; // Session token from LOGIN_SUCCESS
+        private volatile String denied; // Reason from LOGIN_DENIED
+        private volatile Consumer<Message> listener = message -> {}; // Called on the reader thread for every message
+        private volatile boolean discarding; // Skip what the server sends without decoding it, from the next message on
+
+        private Client() throws IOException {
+            socket = TLS ? SSLSocketFactory.getDefault().createSocket(host, port) : new Socket(host, port);
+            out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            // Read everything the server sends, on another thread so the server never blocks on this connection
+            reader = new Thread(() -> {
+                try {
+                    InputStream raw = socket.getInputStream();
+                    ObjectInputStream in = new ObjectInputStream(raw);
+                    while(!discarding){
+                        Message received = (Message) in.readObject();
+                        received.decompress();
+                        if(received.getType() == Message.TYPE.LOGIN_SUCCESS){
+                            token = received.getMessage().strip();
+                            loggedIn.countDown();
+                        } else if(received.getType() == Message.TYPE.LOGIN_DENIED){
+                            denied = received.getMessage().strip();
+                            loggedIn.countDown();
+                        }
+                        listener.accept(received);
+                    }
+                    byte[] buffer = new byte[65536];
+                    while(raw.read(buffer) >= 0);
+                } catch(IOException | ClassNotFoundException ignored){
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private synchronized void send(Message message) throws IOException {
+            out.writeObject(message);
+            out.reset();
+            out.flush();
+        }
+
+        /**
+         * Register a new user on this connection and wait until the server has logged them in
+         * @param name the username
+         * @throws IOException indicates a connection error or the server refusing the log in
+         */
+        private void register(String name) throws IOException {
+            userName = name;
+            send(new Message(name + " " + PASSWORD, Message.TYPE.REGISTER));
+            awaitLogIn();
+        }
+
+        /**
+         * Resume another connection's session on this connection and wait until the server has accepted it
+         * @param previous the connection that held the session
+         * @param room the room the client chats in
+         * @param epoch epoch of the last broadcast received from the room
+         * @param sequence sequence number of the last broadcast received from the room
+         * @throws IOException indicates a connection error or the server refusing the resume
+         */
+        private void resume(Client previous, String room, long epoch, long sequence) throws IOException {
+            userName = previous.userName;
+            send(new Message(previous.token + " " + room + " " + epoch + " " + sequence, Message.TYPE.RESUME));
+            awaitLogIn();
+        }
+
+        private void awaitLogIn() throws IOException {
+            try {
+                if(!loggedIn.await(LOG_IN_TIMEOUT, TimeUnit.NANOSECONDS))
+                    throw new IOException("Server did not log in " + userName);
+            } catch(InterruptedException e){
+                throw new InterruptedIOException();
+            }
+            if(token == null)
+                throw new IOException("Server refused " + userName + ": " + denied);
+        }
+
+        /**
+         * Drop the connection the way a crashed client would, with a reset instead of a clean close
+         * Returns once the reader has stopped, so nothing more arrives from this connection
+         */
+        private void kill(){
+            try {
+                socket.setSoLinger(true, 0);
+                socket.close();
+                reader.join();
+            } catch(IOException ignored){
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void close(){
+            try {
+                socket.close();
+            } catch(IOException ignored){
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: StressTester idle|resume|control [host] [port] [clients] [seconds]");
+            return;
+        }
+        host = args.length > 1 ? args[1] : "localhost";
+        port = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 20;
+        if(clients < 2)
+            throw new IllegalArgumentException("At least 2 clients are needed");
+
+        if(args[0].equalsIgnoreCase("idle")){
+            idle(clients);
+        } else if(args[0].equalsIgnoreCase("resume")){
+            resume(clients, seconds);
+        } else if(args[0].equalsIgnoreCase("control")){
+            control(clients, seconds);
+        } else {
+            System.out.println("Unknown scenario " + args[0]);
+            return;
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Measure how long the server takes to clean up after clients that die without logging out
+     * Half are reset, which the server notices on its next read. The other half go silent on an open
+     * connection, like a peer behind a dropped network, which only the idle timeout notices
+     * @param count number of clients
+     * @throws IOException indicates a connection error
+     */
+    private static void idle(int count) throws IOException {
+        String run = newRunId();
+        List<Client> alive = new ArrayList<>();
+        long[] lastHeartbeat = new long[1];
+        startHeartbeats(alive, lastHeartbeat);
+
+        Client observer = new Client();
+        BlockingQueue<String> statuses = new LinkedBlockingQueue<>();
+        observer.listener = message -> {
+            if(message.getMessage() != null && message.getMessage().startsWith("ROOMS"))
+                statuses.add(message.getMessage());
+        };
+        synchronized (alive){
+            alive.add(observer);
+        }
+        observer.register("stress" + run + "-observer");
+        List<Client> clients = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            Client client = new Client();
+            synchronized (alive){
+                alive.add(client);
+            }
+            client.register("stress" + run + "-" + i);
+            clients.add(client);
+        }
+        List<Client> killed = clients.subList(0, count / 2);
+        List<Client> silent = clients.subList(count / 2, count);
+
+        int before = roomSize(observer, statuses, "Main");
+        System.out.println(count + " clients logged in, " + before + " in Main");
+
+        long start = System.nanoTime();
+        synchronized (alive){
+            alive.removeAll(killed);
+        }
+        for(Client client : killed)
+            client.kill();
+        long killedCleanup = awaitRoomSize(observer, statuses, "Main", before - killed.size(), start);
+
+        long silentSince;
+        synchronized (alive){
+            alive.removeAll(silent);
+            silentSince = lastHeartbeat[0];
+        }
+        long silentCleanup = awaitRoomSize(observer, statuses, "Main", before - count, silentSince);
+
+        System.out.println("IDLE\n--------------");
+        System.out.println("Killed clients removed after: " + describe(killedCleanup) + " (" + killed.size() + " clients)");
+        System.out.println("Silent clients removed after: " + describe(silentCleanup) + " since their last heartbeat (" + silent.size() + " clients)");
+        System.out.println("Cleanup times are measured to within " + POLL_INTERVAL / 1_000_000 + " ms");
+        System.out.println("--------------");
+        for(Client client : clients)
+            client.close();
+        observer.close();
+    }
+
+    /**
+     * Check session resumes under load
+     * Each resuming client kills its connection after a random time, resumes on a new connection with the last
+     * sequence number it received, and checks the broadcasts that follow carry on from there without a gap or a
+     * repeat. A client that never resumes is kept as the reference for where the room ends up
+     * @param count number of clients
+     * @param seconds how long to chat for
+     * @throws IOException indicates a connection error
+     */
+    private static void resume(int count, long seconds) throws IOException {
+        String run = newRunId();
+        List<Client> alive = new ArrayList<>();
+        startHeartbeats(alive, new long[1]);
+
+        Client reference = new Client();
+        RoomTracker referenceTracker = new RoomTracker("Main");
+        reference.listener = referenceTracker::received;
+        synchronized (alive){
+            alive.add(reference);
+        }
+        reference.register("stress" + run + "-reference");
+        List<Client> senders = new ArrayList<>();
+        for(int i = 0; i < count / 2; i++){
+            Client sender = new Client();
+            synchronized (alive){
+                alive.add(sender);
+            }
+            sender.register("stress" + run + "-sender" + i);
+            senders.add(sender);
+        }
+        List<RoomTracker> trackers = new ArrayList<>();
+        List<Client> resumers = new ArrayList<>();
+        for(int i = count / 2; i < count; i++){
+            Client resumer = new Client();
+            RoomTracker tracker = new RoomTracker("Main");
+            resumer.listener = tracker::received;
+            synchronized (alive){
+                alive.add(resumer);
+            }
+            resumer.register("stress" + run + "-resumer" + i);
+            trackers.add(tracker);
+            resumers.add(resumer);
+        }
+        System.out.println(count + " clients logged in");
+
+        List<Long> resumeLatencies = Collections.synchronizedList(new ArrayList<>());
+        long[] failed = new long[1];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for(Client sender : senders){
+            threads.add(new Thread(() -> {
+                for(long sent = 0; running; sent++){
+                    try {
+                        sender.send(new Message("load " + sent));
+                    } catch(IOException e){
+                        return;
+                    }
+                    LockSupport.parkNanos(SEND_INTERVAL);
+                }
+            }));
+        }
+        for(int i = 0; i < resumers.size(); i++){
+            Client first = resumers.get(i);
+            RoomTracker tracker = trackers.get(i);
+            threads.add(new Thread(() -> {
+                Client client = first;
+                while(running){
+                    LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(MAX_CONNECTION_LIFE));
+                    client.kill();
+                    long start = System.nanoTime();
+                    try {
+                        Client next = new Client();
+                        next.listener = tracker::received;
+                        synchronized (alive){
+                            alive.remove(client);
+                            alive.add(next);
+                        }
+                        next.resume(client, "Main", tracker.getEpoch(), tracker.getSequence());
+                        resumeLatencies.add(System.nanoTime() - start);
+                        client = next;
+                    } catch(IOException e){
+                        System.out.println(e.getMessage());
+                        synchronized (failed){
+                            failed[0]++;
+                        }
+                        return;
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads)
+            thread.start();
+        LockSupport.parkNanos(end - System.nanoTime());
+        running = false;
+        for(Thread thread : threads){
+            try {
+                thread.join();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Let the last broadcasts arrive everywhere
+        LockSupport.parkNanos(2_000_000_000L);
+
+        long received = 0, gaps = 0, repeats = 0, notices = 0, behind = 0;
+        for(RoomTracker tracker : trackers){
+            synchronized (tracker){
+                received += tracker.received;
+                gaps += tracker.gaps;
+                repeats += tracker.repeats;
+                notices += tracker.notices;
+                if(tracker.epoch != referenceTracker.getEpoch() || tracker.sequence != referenceTracker.getSequence())
+                    behind++;
+            }
+        }
+        System.out.println("RESUME\n--------------");
+        System.out.println("Broadcasts in Main: " + referenceTracker.getSequence());
+        System.out.println(latency("Resume", resumeLatencies) + ", " + failed[0] + " refused");
+        System.out.println("Broadcasts received by resuming clients: " + received);
+        System.out.println("Gaps: " + gaps + ", repeats: " + repeats + ", missed message notices: " + notices);
+        System.out.println("Resuming clients not caught up at the end: " + behind + " of " + trackers.size());
+        System.out.println("--------------");
+    }
+
+    /**
+     * Measure how long control messages wait behind chat in a saturated room
+     * Heartbeats and ROOM_STATUS are answered in the priority lane, so their latency should stay low
+     * while the measuring client's own chat messages queue behind everything else in the room
+     * @param count number of clients
+     * @param seconds how long to flood the room for
+     * @throws IOException indicates a connection error
+     */
+    private static void control(int count, long seconds) throws IOException {
+        String run = newRunId();
+        List<Client> alive = new ArrayList<>();
+        startHeartbeats(alive, new long[1]);
+        List<Client> flooders = new ArrayList<>();
+        for(int i = 0; i < count - 1; i++){
+            Client flooder = new Client();
+            synchronized (alive){
+                alive.add(flooder);
+            }
+            flooder.register("stress" + run + "-flooder" + i);
+            flooder.discarding = true; // Decoding every broadcast would take the CPU the server needs
+            flooders.add(flooder);
+        }
+
+        // The probe sends its own heartbeats, so each answer matches the oldest one sent
+        Client probe = new Client();
+        String probeName = "stress" + run + "-probe";
+        String ownBroadcast = "Main - " + probeName + ": ";
+        ConcurrentLinkedQueue<Long> heartbeatsSent = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Long> statusesSent = new ConcurrentLinkedQueue<>();
+        ConcurrentHashMap<String, Long> chatSent = new ConcurrentHashMap<>();
+        List<Long> heartbeatLatencies = Collections.synchronizedList(new ArrayList<>());
+        List<Long> statusLatencies = Collections.synchronizedList(new ArrayList<>());
+        List<Long> chatLatencies = Collections.synchronizedList(new ArrayList<>());
+        long[] probeReceived = new long[1]; // Only changed on the probe's reader thread
+        probe.listener = message -> {
+            long now = System.nanoTime();
+            probeReceived[0]++;
+            String text = message.getMessage();
+            Long sent = null;
+            if(message.getType() == Message.TYPE.MESSAGE && PROBE_READ_DELAY > 0)
+                LockSupport.parkNanos(PROBE_READ_DELAY);
+            if(message.getType() == Message.TYPE.HEARTBEAT){
+                if((sent = heartbeatsSent.poll()) != null)
+                    heartbeatLatencies.add(now - sent);
+            } else if(text != null && text.startsWith("ROOMS")){
+                if((sent = statusesSent.poll()) != null)
+                    statusLatencies.add(now - sent);
+            } else if(text != null && text.startsWith(ownBroadcast)){
+                if((sent = chatSent.remove(text.substring(ownBroadcast.length()).strip())) != null)
+                    chatLatencies.add(now - sent);
+            }
+        };
+        probe.register(probeName);
+        System.out.println(count + " clients logged in");
+
+        List<Thread> threads = new ArrayList<>();
+        for(Client flooder : flooders){
+            threads.add(new Thread(() -> {
+                for(long sent = 0; running; sent++){
+                    try {
+                        flooder.send(new Message("load " + sent));
+                    } catch(IOException e){
+                        return;
+                    }
+                    LockSupport.parkNanos(FLOOD_INTERVAL);
+                }
+            }));
+        }
+        boolean[] probeDisconnected = new boolean[1];
+        threads.add(new Thread(() -> {
+            for(long round = 0; running; round++){
+                try {
+                    // Noted before sending so the answer can never arrive first
+                    heartbeatsSent.add(System.nanoTime());
+                    probe.send(new Message(Message.TYPE.HEARTBEAT));
+                    if(round % PROBES_PER_REQUEST == 0){
+                        statusesSent.add(System.nanoTime());
+                        probe.send(new Message(Message.TYPE.ROOM_STATUS));
+                    } else if(round % PROBES_PER_REQUEST == PROBES_PER_REQUEST / 2){
+                        chatSent.put("probe " + round, System.nanoTime());
+                        probe.send(new Message("probe " + round));
+                    }
+                } catch(IOException e){
+                    probeDisconnected[0] = true;
+                    return;
+                }
+                LockSupport.parkNanos(PROBE_INTERVAL);
+            }
+        }));
+        long start = System.nanoTime();
+        for(Thread thread : threads)
+            thread.start();
+        LockSupport.parkNanos(seconds * 1_000_000_000L);
+        running = false;
+        for(Thread thread : threads){
+            try {
+                thread.join();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        // Let the backlog reach the probe
+        LockSupport.parkNanos(2_000_000_000L);
+
+        System.out.println("CONTROL\n--------------");
+        System.out.println("Messages received by the probe per second: " + probeReceived[0] * 1_000_000_000L / elapsed);
+        System.out.println(latency("Heartbeat", heartbeatLatencies) + ", " + heartbeatsSent.size() + " unanswered");
+        System.out.println(latency("ROOM_STATUS", statusLatencies) + ", " + statusesSent.size() + " unanswered");
+        System.out.println(latency("Chat message", chatLatencies) + ", " + chatSent.size() + " unanswered");
+        if(probeDisconnected[0])
+            System.out.println("The probe was disconnected, its latencies only cover the time before");
+        System.out.println("--------------");
+    }
+
+    /**
+     * Follows the broadcasts a client receives from one room, across every connection the client uses
+     */
+    private static final class RoomTracker {
+        private final String room;
+        private long epoch; // Epoch and sequence number of the last broadcast received
+        private long sequence;
+        private boolean missed; // The server said messages were missed, so the next broadcast may skip ahead
+        private long received, gaps, repeats, notices;
+
+        private RoomTracker(String room) {
+            this.room = room;
+        }
+
+        private synchronized void received(Message message){
+            String text = message.getMessage();
+            if(text != null && text.startsWith("Some messages in " + room + " were missed")){
+                missed = true;
+                notices++;
+                return;
+            }
+            if(message.getRoom() == null || !message.getRoom().equalsIgnoreCase(room) || message.getSequence() == 0)
+                return;
+            if(message.getEpoch() != epoch || message.getType() != Message.TYPE.MESSAGE){
+                // A new instance of the room, or a room update, which gives the room's sequence number as it is
+                epoch = message.getEpoch();
+                sequence = message.getType() == Message.TYPE.MESSAGE ? message.getSequence() : Math.max(sequence, message.getSequence());
+                missed = false;
+                return;
+            }
+            received++;
+            if(message.getSequence() <= sequence){
+                repeats++;
+                return;
+            }
+            if(message.getSequence() != sequence + 1 && !missed)
+                gaps++;
+            sequence = message.getSequence();
+            missed = false;
+        }
+
+        private synchronized long getEpoch(){
+            return epoch;
+        }
+
+        private synchronized long getSequence(){
+            return sequence;
+        }
+    }
+
+    /**
+     * Send heartbeats for every client in a list so the server does not time them out
+     * @param alive clients to keep alive, changed under its own lock
+     * @param lastHeartbeat set to the System.nanoTime() of each round of heartbeats
+     */
+    private static void startHeartbeats(List<Client> alive, long[] lastHeartbeat){
+        Thread heartbeats = new Thread(() -> {
+            while(true){
+                List<Client> beating;
+                synchronized (alive){
+                    beating = new ArrayList<>(alive);
+                    lastHeartbeat[0] = System.nanoTime();
+                }
+                for(Client client : beating){
+                    try {
+                        client.send(new Message(Message.TYPE.HEARTBEAT));
+                    } catch(IOException ignored){
+                    }
+                }
+                LockSupport.parkNanos(HEARTBEAT_INTERVAL);
+            }
+        });
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+    }
+
+    /**
+     * Summarize a list of latencies
+     * @param label what was measured
+     * @param latencies nanoseconds each one took
+     * @return count, median, 99th percentile and longest latency
+     */
+    private static String latency(String label, List<Long> latencies){
+        List<Long> sorted;
+        synchronized (latencies){
+            sorted = new ArrayList<>(latencies);
+        }
+        sorted.sort(null);
+        return String.format("%s latency: %d measured, p50 %.1f ms, p99 %.1f ms, max %.1f ms", label, sorted.size(),
+                TraceAnalyzer.percentile(sorted, 50) / 1000, TraceAnalyzer.percentile(sorted, 99) / 1000,
+                TraceAnalyzer.percentile(sorted, 100) / 1000);
+    }
+
+    /**
+     * Get a random id that keeps the usernames of one run apart from earlier runs
+     * @return six hex digits
+     */
+    private static String newRunId(){
+        return String.format("%06x", ThreadLocalRandom.current().nextInt(0x1000000));
+    }
+
+    /**
+     * Ask the server how many clients are in a room
+     * @param observer the client asking
+     * @param statuses ROOM_STATUS replies received by the observer
+     * @param room the room
+     * @return clients in the room, 0 if the room does not exist
+     * @throws IOException indicates a connection error or no reply
+     */
+    private static int roomSize(Client observer, BlockingQueue<String> statuses, String room) throws IOException {
+        observer.send(new Message(Message.TYPE.ROOM_STATUS));
+        String status;
+        try {
+            status = statuses.poll(LOG_IN_TIMEOUT, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e){
+            throw new InterruptedIOException();
+        }
+        if(status == null)
+            throw new IOException("Server did not answer ROOM_STATUS");
+        for(String line : status.split("\n")){
+            if(line.startsWith(room + " - "))
+                return Integer.parseInt(line.substring(room.length() + 3).strip());
+        }
+        return 0;
+    }
+
+    /**
+     * Poll a room until it has no more than a number of clients
+     * @param observer the client asking
+     * @param statuses ROOM_STATUS replies received by the observer
+     * @param room the room
+     * @param size clients to wait for the room to shrink to
+     * @param since System.nanoTime() to measure from
+     * @return nanoseconds from since until the room was seen at that size, -1 if it never was
+     * @throws IOException indicates a connection error
+     */
+    private static long awaitRoomSize(Client observer, BlockingQueue<String> statuses, String room, int size, long since) throws IOException {
+        long giveUp = System.nanoTime() + CLEANUP_TIMEOUT;
+        while(System.nanoTime() - giveUp < 0){
+            if(roomSize(observer, statuses, room) <= size)
+                return System.nanoTime() - since;
+            LockSupport.parkNanos(POLL_INTERVAL);
+        }
+        return -1;
+    }
+
+    /**
+     * Describe a measured duration
+     * @param nanos the duration, negative if it was never measured
+     * @return the duration in milliseconds
+     */
+    private static String describe(long nanos){
+        return nanos < 0 ? "not within " + CLEANUP_TIMEOUT / 1_000_000_000L + " s" : nanos / 1_000_000 + " ms";
+    }
+}
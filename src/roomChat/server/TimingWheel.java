@@ -0,0 +1,108 @@
+/**
+ * TimingWheel.java
+ * @author Daniel Tregea
+ * A hashed timing wheel used to time out idle connections.
+ * One thread serves every timeout, and scheduling is a queue insert into the slot
+ * for the deadline's tick, so it scales to many connections without a timer per socket
+ */
+package roomChat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class TimingWheel implements Runnable {
+    public static final long CANCEL = Long.MIN_VALUE;
+
+    private final long tickNanos;
+    private final List<ConcurrentLinkedQueue<Timeout>> slots = new ArrayList<>();
+    private final long start = System.nanoTime();
+    private volatile long currentTick = 0;
+
+    /**
+     * A task run by the wheel once its deadline has passed
+     */
+    public interface Task {
+        /**
+         * @param now the current System.nanoTime()
+         * @return the next deadline to run the task at, or CANCEL to stop
+         */
+        long run(long now);
+    }
+
+    private static final class Timeout {
+        private final Task task;
+        private final long deadline;
+
+        private Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param tickMillis time covered by each slot, which is the precision of the timeouts
+     * @param slotCount amount of slots in the wheel
+     */
+    public TimingWheel(long tickMillis, int slotCount) {
+        this.tickNanos = tickMillis * 1_000_000L;
+        for(int i = 0; i < slotCount; i++)
+            slots.add(new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Schedule a task to run once a deadline has passed
+     * Deadlines further away than one turn of the wheel are checked and put back each turn
+     * @param task the task to run
+     * @param deadline System.nanoTime() after which the task runs
+     */
+    public void schedule(Task task, long deadline){
+        long tick = Math.max((deadline - start) / tickNanos, currentTick + 1);
+        slots.get((int) (tick % slots.size())).add(new Timeout(task, deadline));
+    }
+
+    /**
+     * Advance the wheel every tick and run the tasks that are due
+     */
+    @Override
+    public void run() {
+        while(true){
+            long now = System.nanoTime();
+            long targetTick = (now - start) / tickNanos;
+            while(currentTick <= targetTick){
+                expire(slots.get((int) (currentTick % slots.size())), now);
+                currentTick++;
+            }
+            try {
+                Thread.sleep(tickNanos / 1_000_000L);
+            } catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run the due tasks in a slot and put back the ones that are not due yet
+     * @param slot the slot for the current tick
+     * @param now the current System.nanoTime()
+     */
+    private void expire(ConcurrentLinkedQueue<Timeout> slot, long now){
+        List<Timeout> timeouts = new ArrayList<>();
+        Timeout timeout;
+        while((timeout = slot.poll()) != null)
+            timeouts.add(timeout);
+        for(Timeout each : timeouts){
+            if(each.deadline - now > 0){
+                schedule(each.task, each.deadline);
+                continue;
+            }
+            try {
+                long next = each.task.run(now);
+                if(next != CANCEL)
+                    schedule(each.task, next);
+            } catch(RuntimeException e){
+                System.out.println("Error in timing wheel task");
+            }
+        }
+    }
+}
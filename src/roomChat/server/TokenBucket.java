@@ -0,0 +1,54 @@
+/**
+ * TokenBucket.java
+ * @author Daniel Tregea
+ * A lock-free token bucket used to rate limit clients and rooms.
+ * The bucket is stored as the single time at which it will be full again,
+ * so each bucket is one atomic long regardless of its size
+ */
+package roomChat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacity;
+    private final AtomicLong fullAt; // Time the bucket will be full again if no more tokens are taken
+
+    /**
+     * @param tokensPerSecond rate tokens are added to the bucket
+     * @param capacity most tokens the bucket can hold, which is the largest allowed burst
+     */
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        this.nanosPerToken = 1_000_000_000L / Math.max(1, tokensPerSecond);
+        this.capacity = Math.max(1, capacity);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take tokens from the bucket if there are enough
+     * A cost larger than the capacity is treated as the whole bucket
+     * @param tokens amount of tokens to take
+     * @return True - tokens were taken. False - not enough tokens, nothing was taken
+     */
+    public boolean tryConsume(long tokens){
+        long cost = Math.min(tokens, capacity) * nanosPerToken;
+        while(true){
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long updated = Math.max(current, now) + cost;
+            if(updated - now > capacity * nanosPerToken)
+                return false;
+            if(fullAt.compareAndSet(current, updated))
+                return true;
+        }
+    }
+
+    /**
+     * Give back tokens taken by tryConsume when the action they paid for did not happen
+     * Used when a later limit rejects, so a rejected message costs nothing
+     * @param tokens amount of tokens taken
+     */
+    public void refund(long tokens){
+        fullAt.addAndGet(-Math.min(tokens, capacity) * nanosPerToken);
+    }
+}
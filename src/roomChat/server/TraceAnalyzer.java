@@ -0,0 +1,85 @@
+/**
+ * TraceAnalyzer.java
+ * @author Daniel Tregea
+ * Summarizes a recording made with /TRACE into a latency breakdown per stage.
+ * Usage: java roomChat.server.TraceAnalyzer trace.jfr
+ */
+package roomChat.server;
+
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class TraceAnalyzer {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: TraceAnalyzer trace.jfr");
+            return;
+        }
+        System.out.println(analyze(Path.of(args[0])));
+    }
+
+    /**
+     * Summarize the Room Chat events in a recording
+     * @param file the recording
+     * @return count, mean, median, 99th percentile and longest duration of each stage
+     * @throws IOException indicates the recording could not be read
+     */
+    public static String analyze(Path file) throws IOException {
+        HashMap<String, List<Long>> durations = new HashMap<>();
+        long recipients = 0, characters = 0;
+        for(RecordedEvent event : RecordingFile.readAllEvents(file)){
+            String name = event.getEventType().getName();
+            if(!name.startsWith("roomChat."))
+                continue;
+            durations.computeIfAbsent(name, k -> new ArrayList<>()).add(event.getDuration().toNanos());
+            if(event.hasField("recipients"))
+                recipients += event.getInt("recipients");
+            if(name.equals("roomChat.Send"))
+                characters += event.getInt("size");
+        }
+
+        StringBuilder stringBuilder = new StringBuilder("TRACE\n--------------\n");
+        stringBuilder.append(String.format("%-10s %9s %10s %10s %10s %10s%n", "Stage", "Count", "Mean us", "p50 us", "p99 us", "Max us"));
+        for(Class<? extends Event> type : TraceEvents.TYPES){
+            String name = type.getAnnotation(Name.class).value();
+            List<Long> stage = durations.getOrDefault(name, new ArrayList<>());
+            stage.sort(null);
+            long total = 0;
+            for(long duration : stage)
+                total += duration;
+            stringBuilder.append(String.format("%-10s %9d %10.1f %10.1f %10.1f %10.1f%n", name.substring("roomChat.".length()),
+                    stage.size(), stage.isEmpty() ? 0.0 : total / 1000.0 / stage.size(),
+                    percentile(stage, 50), percentile(stage, 99), percentile(stage, 100)));
+        }
+        int broadcasts = durations.getOrDefault("roomChat.Broadcast", List.of()).size();
+        int sends = durations.getOrDefault("roomChat.Send", List.of()).size();
+        if(broadcasts > 0)
+            stringBuilder.append("Recipients per broadcast: ").append(recipients / broadcasts).append("\n");
+        if(sends > 0)
+            stringBuilder.append("Characters per send: ").append(characters / sends).append("\n");
+        stringBuilder.append("--------------");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Get a percentile of sorted durations
+     * @param sorted durations in nanoseconds, sorted
+     * @param percentile the percentile, 100 for the longest
+     * @return the duration in microseconds, 0 if there are none
+     */
+    static double percentile(List<Long> sorted, int percentile){
+        if(sorted.isEmpty())
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1000.0;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * TraceEvents.java
+ * @author Daniel Tregea
+ * Java Flight Recorder events for each stage a chat message passes through on the server.
+ * Started with /TRACE on the server console and read back by TraceAnalyzer.java.
+ * While no recording is running, shouldCommit() is false and the JIT removes the events entirely.
+ * Broadcast includes the sends it makes directly, Send is one write to one client.
+ */
+package roomChat.server;
+
+import jdk.jfr.*;
+
+import java.util.List;
+
+public final class TraceEvents {
+    // Every event type, in the order a message passes through them
+    static final List<Class<? extends Event>> TYPES = List.of(Decode.class, Dispatch.class, Broadcast.class, Send.class);
+
+    private TraceEvents() {
+    }
+
+    @Name("roomChat.Decode")
+    @Label("Decode")
+    @Description("Reading one message from a client, from its first byte arriving, stream resets before it excluded")
+    @Category("Room Chat")
+    @StackTrace(false)
+    public static final class Decode extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Characters")
+        int size;
+    }
+
+    @Name("roomChat.Dispatch")
+    @Label("Dispatch")
+    @Description("Handling one message from a logged in client")
+    @Category("Room Chat")
+    @StackTrace(false)
+    public static final class Dispatch extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Room")
+        String room;
+
+        @Label("Characters")
+        int size;
+    }
+
+    @Name("roomChat.Broadcast")
+    @Label("Broadcast")
+    @Description("Queueing one broadcast for every client in a room")
+    @Category("Room Chat")
+    @StackTrace(false)
+    public static final class Broadcast extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Characters")
+        int size;
+    }
+
+    @Name("roomChat.Send")
+    @Label("Send")
+    @Description("Writing one message to one client")
+    @Category("Room Chat")
+    @StackTrace(false)
+    public static final class Send extends Event {
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Type")
+        String type;
+
+        @Label("Room")
+        String room;
+
+        @Label("Characters")
+        int size;
+    }
+
+    /**
+     * Get the size of a message's contents
+     * @param message the message
+     * @return characters in the message, 0 if it has none
+     */
+    static int size(Message message){
+        return message.getMessage() == null ? 0 : message.getMessage().length();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * TrafficRecorder.java
+ * @author Daniel Tregea
+ * Records every frame received from clients to a compact binary capture file,
+ * which TrafficReplayer.java can play back against a fresh server.
+ * Passwords are never recorded, log ins are recorded with REPLAY_PASSWORD instead.
+ * Resumes keep their room list, with the username and REPLAY_PASSWORD in place of the session token.
+ *
+ * File format: "RCAP", int version, then one record per frame:
+ * long nanoseconds since recording started, int connection id, byte type
+ * (Message.TYPE ordinal, or DISCONNECT), int length of the UTF-8 contents (-1 for null), contents
+ */
+package roomChat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TrafficRecorder {
+    public static final int MAGIC = 0x52434150; // "RCAP"
+    public static final int VERSION = 3;
+    public static final byte DISCONNECT = -1;
+    public static final String REPLAY_PASSWORD = "replay-password";
+
+    private final DataOutputStream out;
+    private final long start = System.nanoTime();
+    private long frames = 0;
+    private boolean closed = false;
+
+    public TrafficRecorder(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Record a frame received from a client
+     * @param connectionId id of the client's connection
+     * @param message the frame received
+     */
+    public synchronized void record(int connectionId, Message message){
+        write(connectionId, (byte) message.getType().ordinal(), message.getMessage());
+    }
+
+    /**
+     * Record that a client's connection has closed
+     * @param connectionId id of the client's connection
+     */
+    public synchronized void recordDisconnect(int connectionId){
+        write(connectionId, DISCONNECT, null);
+    }
+
+    /**
+     * Write one record. Caller must hold the lock
+     */
+    private void write(int connectionId, byte type, String text){
+        if(closed)
+            return;
+        try {
+            out.writeLong(System.nanoTime() - start);
+            out.writeInt(connectionId);
+            out.writeByte(type);
+            if(text == null){
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            frames++;
+        } catch(IOException e){
+            System.out.println("Error in recording traffic");
+        }
+    }
+
+    /**
+     * Finish the capture file
+     * @return amount of frames recorded
+     */
+    public synchronized long close(){
+        closed = true;
+        try {
+            out.close();
+        } catch(IOException e){
+            System.out.println("Error in closing traffic capture");
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * TrafficReplayer.java
+ * @author Daniel Tregea
+ * Plays a capture made with /RECORD back against a fresh server, one connection per
+ * recorded connection, sending every frame in the order it was recorded.
+ * Usage: java roomChat.server.TrafficReplayer capture [host] [port] [speed]
+ * speed 1 replays at the original pace, 2 twice as fast, and max as fast as possible.
+ * The first log in of each user is sent as REGISTER so the users exist on the fresh server.
+ * A resume is sent as a log in followed by joining the rooms it resumed, the fresh server has no sessions.
+ * Latency is measured per connection, from sending a chat message until the server broadcasts the same text
+ * back to the same connection, and from sending a heartbeat until it is answered.
+ * Messages dropped by rate limits are never broadcast and are reported as never answered.
+ * Rate limits on the server apply to replayed traffic too, raise them with -D properties to replay at max speed.
+ */
+package roomChat.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLSocketFactory;
+
+public class TrafficReplayer {
+    private static final boolean TLS = Boolean.getBoolean("roomChat.tls");
+
+    private static final AtomicLong messagesReceived = new AtomicLong();
+    private static final AtomicLong messagesDropped = new AtomicLong(); // Chat messages skipped over because a later one was broadcast
+    private static final List<Long> messageLatencies = Collections.synchronizedList(new ArrayList<>());
+    private static final List<Long> heartbeatLatencies = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * A chat message waiting to be broadcast back
+     */
+    private static final class SentMessage {
+        private final long sentAt; // System.nanoTime()
+        private final String text;
+
+        private SentMessage(long sentAt, String text) {
+            this.sentAt = sentAt;
+            this.text = text;
+        }
+    }
+
+    /**
+     * A replayed client connection
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private volatile String userName; // From the connection's log in, finds its own broadcasts
+        // Send times of frames the server has not answered yet, oldest first
+        private final ConcurrentLinkedQueue<SentMessage> unansweredMessages = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Long> unansweredHeartbeats = new ConcurrentLinkedQueue<>();
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            // Read everything the server sends, on another thread so the server never blocks on this connection
+            Thread reader = new Thread(() -> {
+                try {
+                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    while(true){
+                        Message received = (Message) in.readObject();
+                        long now = System.nanoTime();
+                        messagesReceived.incrementAndGet();
+                        received.decompress();
+                        answered(received, now);
+                    }
+                } catch(IOException | ClassNotFoundException ignored){
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void send(Message message) throws IOException {
+            // Noted before sending so the answer can never arrive first
+            Message.TYPE type = message.getType();
+            if(type == Message.TYPE.LOGIN || type == Message.TYPE.REGISTER)
+                userName = message.getMessage().split(" ")[0];
+            else if(type == Message.TYPE.MESSAGE && userName != null && message.getMessage() != null)
+                unansweredMessages.add(new SentMessage(System.nanoTime(), message.getMessage()));
+            else if(type == Message.TYPE.HEARTBEAT)
+                unansweredHeartbeats.add(System.nanoTime());
+            out.writeObject(message);
+            out.reset();
+            out.flush();
+        }
+
+        /**
+         * Match a message from the server to the frame it answers
+         * A heartbeat answers the oldest heartbeat. A broadcast from this user answers the oldest chat message
+         * with the same text, and the server handles a connection's frames in order, so chat messages before
+         * that one were dropped by a rate limit. Broadcasts that match no chat message, such as "has joined
+         * the chat!", are not answers
+         * @param received the message received
+         * @param now when it was received, System.nanoTime()
+         */
+        private void answered(Message received, long now){
+            if(received.getType() == Message.TYPE.HEARTBEAT){
+                Long sent = unansweredHeartbeats.poll();
+                if(sent != null)
+                    heartbeatLatencies.add(now - sent);
+                return;
+            }
+            String body = received.getType() == Message.TYPE.MESSAGE ? ownBroadcast(received.getMessage()) : null;
+            if(body == null)
+                return;
+            int skipped = 0;
+            SentMessage match = null;
+            for(SentMessage sent : unansweredMessages){
+                if(sameText(sent.text, body)){
+                    match = sent;
+                    break;
+                }
+                skipped++;
+            }
+            if(match == null)
+                return;
+            // Only this thread removes, so the first skipped + 1 are still the ones looked at
+            for(int i = 0; i <= skipped; i++)
+                unansweredMessages.poll();
+            messagesDropped.addAndGet(skipped);
+            messageLatencies.add(now - match.sentAt);
+        }
+
+        /**
+         * Get the text of one of this user's broadcasts, "room - user: text"
+         * Room names have no spaces, so the room ends at the first " - "
+         * @param text contents of a message from the server
+         * @return the text the user sent, null if the message is not this user's broadcast
+         */
+        private String ownBroadcast(String text){
+            String name = userName;
+            if(text == null || name == null)
+                return null;
+            int separator = text.indexOf(" - ");
+            String prefix = name + ": ";
+            if(separator <= 0 || !text.startsWith(prefix, separator + 3) || !text.endsWith("\n"))
+                return null;
+            return text.substring(separator + 3 + prefix.length(), text.length() - 1);
+        }
+
+        /**
+         * Determine whether a broadcast carries a sent text
+         * The content filter masks words with '*' without changing the length
+         * @param sent the text that was sent
+         * @param broadcast the text that was broadcast
+         * @return True - the broadcast is the sent text, possibly masked
+         */
+        private static boolean sameText(String sent, String broadcast){
+            if(sent.length() != broadcast.length())
+                return false;
+            for(int i = 0; i < sent.length(); i++){
+                if(sent.charAt(i) != broadcast.charAt(i) && broadcast.charAt(i) != '*')
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Get the amount of frames the server never answered
+         * @return chat messages and heartbeats still waiting for an answer
+         */
+        private int unanswered(){
+            return unansweredMessages.size() + unansweredHeartbeats.size();
+        }
+
+        /**
+         * Hang up after the server has read everything sent so far
+         */
+        private void finish(){
+            try {
+                socket.shutdownOutput();
+            } catch(IOException ignored){
+                close();
+            }
+        }
+
+        private void close(){
+            try {
+                socket.close();
+            } catch(IOException ignored){
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: TrafficReplayer capture [host] [port] [speed|max]");
+            return;
+        }
+        Path file = Path.of(args[0]);
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+        double speed = 1; // 0 - as fast as possible
+        if(args.length > 3)
+            speed = args[3].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[3]);
+        if(speed < 0)
+            throw new IllegalArgumentException("Speed can not be negative");
+
+        HashMap<Integer, Connection> connections = new HashMap<>();
+        ArrayList<Connection> finished = new ArrayList<>();
+        HashSet<Integer> failed = new HashSet<>(); // Connections the server has closed
+        HashSet<String> registered = new HashSet<>();
+        long framesSent = 0, framesSkipped = 0, connectionsOpened = 0, maxLag = 0, lastTimestamp = 0;
+        long start = System.nanoTime();
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))){
+            if(in.readInt() != TrafficRecorder.MAGIC || in.readInt() != TrafficRecorder.VERSION)
+                throw new IOException(file + " is not a traffic capture");
+            while(true){
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch(EOFException e){
+                    break;
+                }
+                int connectionId = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                String text = null;
+                if(length >= 0){
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    text = new String(bytes, StandardCharsets.UTF_8);
+                }
+                lastTimestamp = timestamp;
+
+                // Wait until the frame is due
+                if(speed > 0){
+                    long due = start + (long) (timestamp / speed);
+                    long wait;
+                    while((wait = due - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                    maxLag = Math.max(maxLag, -wait);
+                }
+
+                if(type == TrafficRecorder.DISCONNECT){
+                    Connection connection = connections.remove(connectionId);
+                    if(connection != null){
+                        connection.finish();
+                        finished.add(connection);
+                    }
+                    failed.remove(connectionId);
+                    continue;
+                }
+                if(failed.contains(connectionId)){
+                    framesSkipped++;
+                    continue;
+                }
+
+                Message.TYPE messageType = Message.TYPE.values()[type];
+                String[] rooms = new String[0]; // Rooms a resume rejoins, the first one chatted in
+                if(messageType == Message.TYPE.RESUME && text != null){
+                    String[] parts = text.split(" ");
+                    rooms = new String[Math.max(0, (parts.length - 2) / 3)];
+                    for(int i = 0; i < rooms.length; i++)
+                        rooms[i] = parts[2 + 3 * i];
+                    text = parts[0] + " " + (parts.length > 1 ? parts[1] : TrafficRecorder.REPLAY_PASSWORD);
+                    messageType = Message.TYPE.LOGIN;
+                }
+                if((messageType == Message.TYPE.LOGIN || messageType == Message.TYPE.REGISTER) && text != null)
+                    messageType = registered.add(text.split(" ")[0]) ? Message.TYPE.REGISTER : Message.TYPE.LOGIN;
+
+                Connection connection = connections.get(connectionId);
+                try {
+                    if(connection == null){
+                        connection = new Connection(TLS ? SSLSocketFactory.getDefault().createSocket(host, port) : new Socket(host, port));
+                        connections.put(connectionId, connection);
+                        connectionsOpened++;
+                    }
+                    connection.send(new Message(text, messageType));
+                    framesSent++;
+                    for(int i = 0; i < rooms.length; i++){
+                        if(i > 0)
+                            connection.send(new Message(rooms[i], Message.TYPE.SUBSCRIBE));
+                        else if(!rooms[i].equalsIgnoreCase("Main"))
+                            connection.send(new Message(rooms[i], Message.TYPE.CHANGE_ROOM));
+                    }
+                } catch(IOException e){
+                    // The server closed the connection, as it may have in the capture too
+                    if(connection != null)
+                        connection.close();
+                    connections.remove(connectionId);
+                    failed.add(connectionId);
+                    framesSkipped++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Give the server a moment to answer the last frames before hanging up
+        LockSupport.parkNanos(1_000_000_000L);
+        long unanswered = 0;
+        for(Connection connection : connections.values()){
+            unanswered += connection.unanswered();
+            connection.close();
+        }
+        for(Connection connection : finished){
+            unanswered += connection.unanswered();
+            connection.close();
+        }
+
+        System.out.println("REPLAY\n--------------");
+        System.out.println("Frames sent: " + framesSent + " (" + framesSkipped + " skipped)");
+        System.out.println("Connections: " + connectionsOpened);
+        System.out.println("Recorded duration: " + lastTimestamp / 1_000_000 + " ms");
+        System.out.println("Replay duration: " + elapsed / 1_000_000 + " ms");
+        if(elapsed > 0)
+            System.out.println("Frames per second: " + framesSent * 1_000_000_000L / elapsed);
+        if(speed > 0)
+            System.out.println("Max lag behind schedule: " + maxLag / 1_000_000 + " ms");
+        System.out.println("Messages received: " + messagesReceived.get());
+        System.out.println(latency("Chat message", messageLatencies));
+        System.out.println(latency("Heartbeat", heartbeatLatencies));
+        System.out.println("Frames never answered: " + (unanswered + messagesDropped.get()));
+        System.out.println("--------------");
+    }
+
+    /**
+     * Summarize the latencies of one kind of frame
+     * @param label what was answered
+     * @param latencies nanoseconds from sending each frame until it was answered
+     * @return count, mean, median, 99th percentile and longest latency
+     */
+    private static String latency(String label, List<Long> latencies){
+        List<Long> sorted;
+        synchronized (latencies){
+            sorted = new ArrayList<>(latencies);
+        }
+        sorted.sort(null);
+        long total = 0;
+        for(long latency : sorted)
+            total += latency;
+        return String.format("%s latency: %d answered, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", label, sorted.size(),
+                sorted.isEmpty() ? 0.0 : total / 1000.0 / sorted.size(), TraceAnalyzer.percentile(sorted, 50),
+                TraceAnalyzer.percentile(sorted, 99), TraceAnalyzer.percentile(sorted, 100));
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * WebSocketClientHandler.java
+ * @author Daniel Tregea
+ * A ClientHandler for browsers connecting over WebSocket.
+ * Browsers join the same rooms as ClientChat.java users. Messages are text frames of the form
+ * "TYPE contents", for example "LOGIN user password" or "MESSAGE hello".
+ * The opening handshake and frames are handled here without any extra libraries.
+ */
+package roomChat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.net.Socket;
+
+public class WebSocketClientHandler extends ClientHandler {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_MESSAGE_SIZE = 65536;
+    private static final int OPCODE_CONTINUATION = 0x0, OPCODE_TEXT = 0x1, OPCODE_CLOSE = 0x8, OPCODE_PING = 0x9, OPCODE_PONG = 0xA;
+    // Types a browser may send
+    private static final EnumSet<Message.TYPE> CLIENT_TYPES = EnumSet.of(Message.TYPE.LOGIN, Message.TYPE.REGISTER,
+            Message.TYPE.RESUME, Message.TYPE.MESSAGE, Message.TYPE.CHANGE_ROOM, Message.TYPE.ROOM_STATUS,
+            Message.TYPE.SEARCH, Message.TYPE.HEARTBEAT, Message.TYPE.SUBSCRIBE, Message.TYPE.UNSUBSCRIBE,
+            Message.TYPE.DIRECT);
+
+    private InputStream bufferedIn;
+    private DataInputStream in;
+    private OutputStream out;
+
+    public WebSocketClientHandler(Socket socket, String room) {
+        super(socket, room);
+    }
+
+    /**
+     * Read the HTTP upgrade request and answer it to open the WebSocket
+     * @throws IOException indicates a connection error or a request that is not a WebSocket upgrade
+     */
+    @Override
+    void openStreams() throws IOException {
+        InputStream socketIn = new BufferedInputStream(getSocket().getInputStream());
+        OutputStream socketOut = new BufferedOutputStream(getSocket().getOutputStream());
+        String key = null;
+        boolean upgrade = false;
+        String requestLine = readLine(socketIn);
+        String line;
+        int headers = 0;
+        while(!(line = readLine(socketIn)).isEmpty()){
+            if(++headers > MAX_HEADERS)
+                throw new IOException("WebSocket handshake too large");
+            int colon = line.indexOf(':');
+            if(colon < 0)
+                continue;
+            String name = line.substring(0, colon).strip();
+            String value = line.substring(colon + 1).strip();
+            if(name.equalsIgnoreCase("Sec-WebSocket-Key"))
+                key = value;
+            else if(name.equalsIgnoreCase("Upgrade"))
+                upgrade = value.equalsIgnoreCase("websocket");
+        }
+        if(!requestLine.startsWith("GET ") || !upgrade || key == null){
+            socketOut.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            socketOut.flush();
+            throw new IOException("Not a WebSocket upgrade request");
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        synchronized (this){
+            socketOut.write(response.getBytes(StandardCharsets.ISO_8859_1));
+            socketOut.flush();
+            out = socketOut;
+        }
+        bufferedIn = socketIn;
+        in = new DataInputStream(socketIn);
+    }
+
+    /**
+     * Wait until the first byte of the next frame has arrived, without reading it
+     * @throws IOException indicates connection error to clients socket
+     */
+    @Override
+    void awaitMessage() throws IOException {
+        awaitByte(bufferedIn);
+    }
+
+    /**
+     * Read frames until a whole text message has arrived
+     * Pings are answered and fragmented messages are put back together
+     * @return the Message sent by the browser
+     * @throws IOException indicates a connection error, a close frame or a malformed message
+     */
+    @Override
+    Object read() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        while(true){
+            int first = in.readUnsignedByte();
+            int second = in.readUnsignedByte();
+            boolean finished = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            if((second & 0x80) == 0)
+                throw new IOException("Browser frames must be masked");
+            long length = second & 0x7F;
+            if(length == 126)
+                length = in.readUnsignedShort();
+            else if(length == 127)
+                length = in.readLong();
+            if(length < 0 || text.size() + length > MAX_MESSAGE_SIZE)
+                throw new IOException("WebSocket message too large");
+            byte[] mask = new byte[4];
+            in.readFully(mask);
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for(int i = 0; i < payload.length; i++)
+                payload[i] ^= mask[i & 3];
+
+            if(opcode == OPCODE_PING){
+                writeFrame(encodeFrame(OPCODE_PONG, payload));
+            } else if(opcode == OPCODE_CLOSE){
+                writeFrame(encodeFrame(OPCODE_CLOSE, new byte[0]));
+                throw new EOFException("WebSocket closed by browser");
+            } else if(opcode == OPCODE_TEXT || opcode == OPCODE_CONTINUATION){
+                text.write(payload);
+                if(finished)
+                    return parse(text.toString(StandardCharsets.UTF_8));
+            } else if(opcode != OPCODE_PONG){
+                throw new IOException("Unsupported WebSocket frame");
+            }
+        }
+    }
+
+    /**
+     * Send a message to the browser as a text frame
+     * The encoded frame is kept on the message so a broadcast is only encoded once
+     * @param message message to be sent
+     * @throws IOException indicates connection error to clients socket
+     */
+    @Override
+    synchronized void write(Message message) throws IOException {
+        byte[] frame = message.getWebSocketFrame();
+        if(frame == null){
+            String text = message.getType() + " " + (message.getMessage() == null ? "" : message.getMessage());
+            frame = encodeFrame(OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+            message.setWebSocketFrame(frame);
+        }
+        writeFrame(frame);
+    }
+
+    /**
+     * Write an encoded frame to the browser
+     * @param frame the encoded frame
+     * @throws IOException indicates connection error to clients socket
+     */
+    private synchronized void writeFrame(byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * Encode an unmasked frame, as sent from a server
+     * @param opcode the frame's opcode
+     * @param payload contents of the frame
+     * @return the encoded frame
+     */
+    private static byte[] encodeFrame(int opcode, byte[] payload){
+        int header = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        byte[] frame = new byte[header + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        if(header == 2){
+            frame[1] = (byte) payload.length;
+        } else if(header == 4){
+            frame[1] = 126;
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        } else {
+            frame[1] = 127;
+            for(int i = 0; i < 8; i++)
+                frame[2 + i] = (byte) ((long) payload.length >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, frame, header, payload.length);
+        return frame;
+    }
+
+    /**
+     * Turn a "TYPE contents" text message into a Message
+     * @param text the text sent by the browser
+     * @return the Message
+     * @throws IOException indicates a type browsers are not allowed to send
+     */
+    private static Message parse(String text) throws IOException {
+        int space = text.indexOf(' ');
+        String type = (space < 0 ? text : text.substring(0, space)).strip().toUpperCase();
+        String contents = space < 0 ? null : text.substring(space + 1);
+        try {
+            Message.TYPE messageType = Message.TYPE.valueOf(type);
+            if(CLIENT_TYPES.contains(messageType))
+                return new Message(contents, messageType);
+        } catch(IllegalArgumentException ignored){
+        }
+        throw new IOException("Unknown message type from browser: " + type);
+    }
+
+    /**
+     * Read one line of the HTTP request
+     * @param in the socket's input stream
+     * @return the line without its line ending
+     * @throws IOException indicates a connection error or a request that is too large
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) != '\n'){
+            if(c < 0)
+                throw new EOFException("Connection closed during WebSocket handshake");
+            if(c != '\r')
+                line.append((char) c);
+            if(line.length() > MAX_HEADER_SIZE)
+                throw new IOException("WebSocket handshake too large");
+        }
+        return line.toString();
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept value for a Sec-WebSocket-Key
+     * @param key the key sent by the browser
+     * @return the accept value
+     */
+    private static String acceptKey(String key) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch(NoSuchAlgorithmException e){
+            throw new IOException("SHA-1 is not available", e);
+        }
+    }
+}
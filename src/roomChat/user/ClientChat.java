@@ -97,8 +97,10 @@ public class ClientChat extends Application {
         roomStatus.setPadding(new Insets(10));
         Button changeScheme = new Button("Change Scheme");
         changeScheme.setPadding(new Insets(10));
-        controlButtons = new Button[]{changeScheme, changeRoom, roomStatus};
-        VBox controls = new VBox(changeRoom, roomStatus, changeScheme);
+        Button search = new Button("Search");
+        search.setPadding(new Insets(10));
+        controlButtons = new Button[]{changeScheme, changeRoom, roomStatus, search};
+        VBox controls = new VBox(changeRoom, roomStatus, search, changeScheme);
         controls.setAlignment(Pos.CENTER);
         controls.setSpacing(20);
 
@@ -148,7 +150,17 @@ public class ClientChat extends Application {
         send.setOnAction(e->{
             if(!changeRoomConfirming){
                 if(!inputArea.getText().equals("") && !inputArea.getText().equals("\n")) {
-                    Message message = new Message(inputArea.getText().strip());
+                    String text = inputArea.getText().strip();
+                    Message message;
+                    // Follow or stop following other rooms, or message one user
+                    if(text.toLowerCase().startsWith("/subscribe "))
+                        message = new Message(text.substring(11).strip(), Message.TYPE.SUBSCRIBE);
+                    else if(text.toLowerCase().startsWith("/unsubscribe "))
+                        message = new Message(text.substring(13).strip(), Message.TYPE.UNSUBSCRIBE);
+                    else if(text.toLowerCase().startsWith("/msg "))
+                        message = new Message(text.substring(5).strip(), Message.TYPE.DIRECT);
+                    else
+                        message = new Message(text);
                     communicator.send(message);
                 }
             } else{ // "Runs when user clicks "cancel" when changing rooms"
@@ -198,6 +210,16 @@ public class ClientChat extends Application {
         // Sends a room status request
         roomStatus.setOnMouseClicked(e-> communicator.send(new Message(Message.TYPE.ROOM_STATUS)));
 
+        // Search the history of every room, or one room with room:name
+        search.setOnMouseClicked(e->{
+            String query = inputArea.getText().strip();
+            clearText(inputArea);
+            if(query.equals(""))
+                updateGUI(new Message("Usage: Type in words or \"a phrase\" to search for, add room:name to search one room\n"));
+            else
+                communicator.send(new Message(query, Message.TYPE.SEARCH));
+        });
+
         // Change color schemes
         changeScheme.setOnMouseClicked(e->{
             String newScheme = inputArea.getText().strip().toUpperCase();
@@ -6,19 +6,125 @@
 package roomChat.user;
 
 import javafx.application.Platform;
+import roomChat.server.Compression;
 import roomChat.server.Message;
 import java.io.*;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 public class Communicator {
-    private final ObjectInputStream in;
-    private final ObjectOutputStream out;
+    private static final int HEARTBEAT_INTERVAL = 10000; // milliseconds between heartbeats
+    private static final int SERVER_TIMEOUT = 30000; // milliseconds without hearing from the server before giving up
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final boolean TLS = Boolean.getBoolean("roomChat.tls");
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("roomChat.compression", "true"));
+    private final String address;
+    private final int port;
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+    private volatile boolean listening = true;
+    private volatile boolean resuming = false;
+    private String sessionToken; // Given by the server on log in, used to resume after a dropped connection
+    private String room = "Main"; // Room the user chats in
+    private final HashMap<String, Message> lastBroadcasts = new HashMap<>(); // Last broadcast or room update received from each room
 
     public Communicator(String address, int port) throws IOException {
-        Socket socket = new Socket(address, port);
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
+        this.address = address;
+        this.port = port;
+        connect();
         ClientChat.connected = true;
+
+        Thread heartbeat = new Thread(this::sendHeartbeats);
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * Periodically let the server know this client is still alive
+     * The server answers each heartbeat, which keeps the socket timeout from expiring
+     */
+    private void sendHeartbeats(){
+        while(listening){
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL);
+            } catch(InterruptedException e){
+                return;
+            }
+            if(listening && !resuming)
+                send(new Message(Message.TYPE.HEARTBEAT));
+        }
+    }
+
+    /**
+     * Open a connection to the server
+     * @throws IOException Indicates the server could not be reached
+     */
+    private void connect() throws IOException {
+        Socket socket;
+        if(TLS){
+            // The default factory caches sessions, so reconnecting resumes the previous session
+            SSLSocket sslSocket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(address, port);
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS"); // Check the certificate is for this server
+            sslSocket.setSSLParameters(parameters);
+            sslSocket.startHandshake();
+            socket = sslSocket;
+        } else {
+            socket = new Socket(address, port);
+        }
+        socket.setSoTimeout(SERVER_TIMEOUT);
+        ObjectOutputStream newOut = new ObjectOutputStream(socket.getOutputStream());
+        synchronized (this){
+            out = newOut;
+        }
+        in = new ObjectInputStream(socket.getInputStream());
+        // Offer the codecs this client supports, the server answers with the one it picked
+        write(new Message(COMPRESSION ? Compression.CODEC : "none", Message.TYPE.HELLO));
+    }
+
+    /**
+     * Reconnect after a dropped connection and ask the server to resume the session
+     * Retries with an increasing delay
+     * @return True - reconnected and resume requested. False - server could not be reached
+     */
+    private boolean reconnect(){
+        resuming = true;
+        ClientChat.updateGUI(new Message("Connection lost, reconnecting...\n"));
+        for(int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++){
+            try {
+                Thread.sleep(1000L << attempt);
+                connect();
+                StringBuilder request = new StringBuilder(sessionToken);
+                appendResume(request, room, lastBroadcasts.get(room));
+                for(Map.Entry<String, Message> subscription : lastBroadcasts.entrySet()){
+                    if(!subscription.getKey().equals(room))
+                        appendResume(request, subscription.getKey(), subscription.getValue());
+                }
+                write(new Message(request.toString(), Message.TYPE.RESUME));
+                return true;
+            } catch(IOException ignored){
+            } catch(InterruptedException e){
+                break;
+            }
+        }
+        resuming = false;
+        return false;
+    }
+
+    /**
+     * Add a room to a RESUME request as its name, the epoch of the room instance and the last sequence number received
+     * @param request the request being built
+     * @param roomName name of the room
+     * @param last last broadcast or room update received from the room, null if none
+     */
+    private static void appendResume(StringBuilder request, String roomName, Message last){
+        request.append(" ").append(roomName)
+                .append(" ").append(last == null ? 0 : last.getEpoch())
+                .append(" ").append(last == null ? 0 : last.getSequence());
     }
 
     /**
@@ -29,21 +135,40 @@ public class Communicator {
         while(true){
             try{
                 message = (Message) receive();
+                if(message.getType() == Message.TYPE.HEARTBEAT || message.getType() == Message.TYPE.HELLO)
+                    continue;
+                message.decompress();
                 System.out.println("message received: " + message.getType());
+                if(message.getRoom() != null)
+                    trackRoom(message);
                 if(message.getType() == Message.TYPE.LOGIN_SUCCESS) {
-                    Platform.runLater(ClientChat::changeToChatScene);
+                    sessionToken = message.getMessage().strip();
+                    if(resuming)
+                        ClientChat.updateGUI(new Message("Reconnected\n"));
+                    else
+                        Platform.runLater(ClientChat::changeToChatScene);
+                    resuming = false;
                 } else if (message.getType() == Message.TYPE.LOGIN_DENIED){
+                    if(resuming){
+                        sessionToken = null;
+                        resuming = false;
+                        ClientChat.updateGUI(new Message("Could not resume session. Please Restart\n"));
+                    }
                     ClientChat.updateLogInGUI(message);
                     //TODO Handle kick messages uniquely
                 } else{
                     ClientChat.updateGUI(message);
                 }
             } catch(IOException e){
+                if(sessionToken != null && reconnect())
+                    continue;
+                listening = false;
                 System.out.println("Disconnected from server");
                 ClientChat.updateGUI(new Message("Connection to server has been severed\n")); // TODO do to log in gui too
                 ClientChat.updateLogInGUI(new Message("Connection to server has been severed"));
                 break;
             } catch(ClassNotFoundException f){
+                listening = false;
                 ClientChat.updateGUI(new Message("Object not found exception\n"));
                 break;
             }
@@ -51,14 +176,35 @@ public class Communicator {
         }
     }
 
+    /**
+     * Keep track of the rooms this user receives broadcasts from, and the last broadcast from each
+     * These are sent to the server to resume the session after a dropped connection
+     * @param message a message from the server about a room
+     */
+    private void trackRoom(Message message){
+        if(message.getType() == Message.TYPE.CHANGE_ROOM){
+            lastBroadcasts.remove(room);
+            room = message.getRoom();
+            lastBroadcasts.putIfAbsent(room, message);
+        } else if(message.getType() == Message.TYPE.SUBSCRIBE){
+            lastBroadcasts.putIfAbsent(message.getRoom(), message);
+        } else if(message.getType() == Message.TYPE.UNSUBSCRIBE){
+            lastBroadcasts.remove(message.getRoom());
+        } else if(message.getRoom().equalsIgnoreCase(room)){
+            lastBroadcasts.put(message.getRoom(), message);
+        } else {
+            // A late broadcast from a room the user has left must not add it back
+            lastBroadcasts.computeIfPresent(message.getRoom(), (name, last) -> message);
+        }
+    }
+
     /**
      * Send a message to the server
      * @param message message to be sent
      */
     public void send(Message message){
         try{
-            out.writeObject(message);
-            out.flush();
+            write(message);
         } catch(IOException e){
             ClientChat.updateGUI(new Message("Connection to server has been severed\n"));
 
@@ -66,6 +212,17 @@ public class Communicator {
 
     }
 
+    /**
+     * Write a message to the server's stream
+     * @param message message to be sent
+     * @throws IOException Indicates connection error to server
+     */
+    private synchronized void write(Message message) throws IOException {
+        out.writeObject(message);
+        out.reset(); // Release the stream's reference to the sent message
+        out.flush();
+    }
+
     /**
      * Receive messages from the server
      * @return Message object received from server